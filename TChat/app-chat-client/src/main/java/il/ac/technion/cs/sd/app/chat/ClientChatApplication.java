@@ -2,6 +2,7 @@ package il.ac.technion.cs.sd.app.chat;
 
 import il.ac.technion.cs.sd.app.chat.exchange.*;
 import il.ac.technion.cs.sd.msg.ClientCommunicationsLibrary;
+import il.ac.technion.cs.sd.msg.Message.Priority;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -109,9 +110,12 @@ public class ClientChatApplication {
 		
 		if (null == this.connection) {
 			this.connection = new ClientCommunicationsLibrary(myServerAddress, myUsername, s -> handleIncoming(s));
+			// chat messages and announcements should reach the consumers in the order the server sent them
+			this.connection.setOrderedDelivery(true);
 		}
 		
-		this.connection.send(myCodec.encode(new ConnectRequest()));
+		// connection management is served by the server ahead of the chat traffic of other clients
+		this.connection.send(myCodec.encode(new ConnectRequest()), Priority.CONTROL);
 		this.isLoggedIn = true;
 	}
 
@@ -171,7 +175,7 @@ public class ClientChatApplication {
 	 */
 	public void logout() {
 		if (this.isLoggedIn) {
-			this.connection.send(myCodec.encode(new DisconnectRequest()));
+			this.connection.send(myCodec.encode(new DisconnectRequest()), Priority.CONTROL);
 		}
 		
 		this.isLoggedIn = false;
@@ -1,5 +1,6 @@
 package il.ac.technion.cs.sd.app.chat;
 
+import java.util.ArrayList;
 import java.util.Optional;
 import java.util.function.Function;
 
@@ -18,6 +19,7 @@ import il.ac.technion.cs.sd.app.chat.exchange.JoinRoomRequest;
 import il.ac.technion.cs.sd.app.chat.exchange.OperationResponse;
 import il.ac.technion.cs.sd.app.chat.exchange.LeaveRoomRequest;
 import il.ac.technion.cs.sd.app.chat.exchange.SendMessageRequest;
+import il.ac.technion.cs.sd.msg.DeliveryFailedException;
 import il.ac.technion.cs.sd.msg.ServerCommunicationsLibrary;
 
 
@@ -32,6 +34,8 @@ public class ServerChatApplication {
 	
 	final private String serverAddress;
 	final static private Codec<Exchange> codec = new XStreamCodec<Exchange>();
+	// responses listing rooms or clients grow large, and their xml compresses well
+	final static private int compressionThresholdInChars = 1024;
 	
 	private ServerCommunicationsLibrary connection;
 	
@@ -63,6 +67,7 @@ public class ServerChatApplication {
 	 */
 	public void start() {
 		this.connection = new ServerCommunicationsLibrary(serverAddress);
+		this.connection.setCompressionThreshold(compressionThresholdInChars);
 		startConnection();
 		loadData();
 	}
@@ -130,7 +135,7 @@ public class ServerChatApplication {
 	 * @param roomAnnouncementMap a function that maps the room name to the wanted announcement.
 	 */
 	private void announceInAllRoomsOfAClient(String client, Function<String, AnnouncementRequest> roomAnnouncementMap) {
-		for (String room : data.getRoomsOfClient(client)) {
+		for (String room : new ArrayList<>(data.getRoomsOfClient(client))) {
 			broadcastToRoom(client, room, roomAnnouncementMap.apply(room));
 		}
 	}
@@ -141,7 +146,8 @@ public class ServerChatApplication {
 	 * @param exchange the message to send.
 	 */
 	private void broadcastToRoom(String sender, String room, Exchange exchange) {
-		for (String client : data.getClientsInRoom(room)) {
+		// a copy, as members that went away are disconnected, and so removed from the room, meanwhile
+		for (String client : new ArrayList<>(data.getClientsInRoom(room))) {
 			if (client.equals(sender)) {
 				continue;
 			}
@@ -151,6 +157,8 @@ public class ServerChatApplication {
 	
 	/**
 	 * Send an exchange to the client if it is online. Otherwise, discard the message.
+	 * A client that does not acknowledge the message in time went away without disconnecting,
+	 * so it is disconnected, and the members of its rooms are told so.
 	 * @param client the client to send the message to.
 	 * @param exchange the message to send.
 	 */
@@ -158,7 +166,21 @@ public class ServerChatApplication {
 		if (!data.isClientConnected(client)) {
 			return;
 		}
-		connection.send(client, codec.encode(exchange));
+		try {
+			connection.send(client, codec.encode(exchange));
+		} catch (DeliveryFailedException e) {
+			disconnect(client);
+		}
+	}
+	
+	/**
+	 * Disconnect a client, and announce it in all of its rooms.
+	 * @param client the client to disconnect.
+	 */
+	private void disconnect(String client) {
+		data.disconnectClient(client);
+		announceInAllRoomsOfAClient(client, room -> new AnnouncementRequest(
+				new RoomAnnouncement(client, room, Announcement.DISCONNECT)));
 	}
 	
 	private class Visitor implements ExchangeVisitor {
@@ -178,9 +200,7 @@ public class ServerChatApplication {
 
 		@Override
 		public void visit(DisconnectRequest request) {
-			data.disconnectClient(client);
-			announceInAllRoomsOfAClient(client, room -> new AnnouncementRequest(
-					new RoomAnnouncement(client, room, Announcement.DISCONNECT)));
+			disconnect(client);
 			
 			// TODO: check self announcements.
 		}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import il.ac.technion.cs.sd.app.chat.RoomAnnouncement.Announcement;
 import il.ac.technion.cs.sd.app.chat.exchange.*;
+import il.ac.technion.cs.sd.msg.DeliveryFailedException;
 import il.ac.technion.cs.sd.msg.ServerCommunicationsLibrary;
 
 import java.util.Arrays;
@@ -127,6 +128,29 @@ public class ServerChatApplicationTest {
 	}
 	
 	
+	@Test
+	public void clientThatWentAwayIsDisconnectedWithoutStoppingTheBroadcast() {
+		for (String client : Arrays.asList("David", "Shaul", "Shlomo", "Avner")) {
+			sendToServer(client, new ConnectRequest());
+			sendToServer(client, new JoinRoomRequest("Kings"));
+		}
+		// Shaul went away without disconnecting.
+		Mockito.doThrow(new DeliveryFailedException("Shaul", 3, "not acknowledged before the deadline"))
+				.when(connection).send(Mockito.eq("Shaul"), Mockito.anyString());
+		
+		Exchange request = new SendMessageRequest(new ChatMessage("David", "Kings", "We kings!"));
+		sendToServer("David", request);
+		
+		Mockito.verify(connection).send("Shlomo", codec.encode(request));
+		Mockito.verify(connection).send("Avner", codec.encode(request));
+		// once for joining the room, and once for the message
+		Mockito.verify(connection, Mockito.times(2)).send("David", codec.encode(OperationResponse.SUCCESS));
+		String disconnected = codec.encode(new AnnouncementRequest(
+				new RoomAnnouncement("Shaul", "Kings", Announcement.DISCONNECT)));
+		Mockito.verify(connection).send("Avner", disconnected);
+		Mockito.verify(connection).send("David", disconnected);
+	}
+	
 	@Test
 	public void MessageIsSentToSeveralClientsInRoom() {
 		sendToServer("David", new ConnectRequest());
@@ -1,6 +1,9 @@
 package il.ac.technion.cs.sd.msg;
 
 import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
+
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -11,10 +14,13 @@ public class ClientCommunicationsLibrary {
 	private String serverAddress;
 	private String username;
 	private ReliableMessenger messenger;
+	// set when the client is one of the identities of a shared endpoint
+	private MultiplexedClientEndpoint endpoint;
 	
 	private Consumer<String> applicationAction;
 	
-	// will be forwarded to the ReliableMessenger. This will be called in a new thread.
+	// will be forwarded to the ReliableMessenger. This will be called by its MessageDispatcher,
+	// one message at a time per sender, in the order they arrived.
 	Consumer<Message> libraryActionOnReceive = new Consumer<Message>() {
 		
 		@Override
@@ -27,7 +33,9 @@ public class ClientCommunicationsLibrary {
 	 * Creates a new instance of the ClientCommunicationsLibrary
 	 * @param serverAddress - the address of the server
 	 * @param username - the address of the client
-	 * @param action - the action to take when a new message arrives. This will be called in a separate thread.
+	 * @param action - the action to take when a new message arrives. This will be called by the default
+	 * dispatcher: a pool of threads, or virtual threads if they were asked for, see VirtualThreads.
+	 * Messages from the same sender are handed to it one at a time, in the order they arrived.
 	 */
 	public ClientCommunicationsLibrary(String serverAddress, String username, Consumer<String> action) {
 		this.serverAddress = serverAddress;
@@ -37,11 +45,41 @@ public class ClientCommunicationsLibrary {
 		messenger = new ReliableMessenger(username, libraryActionOnReceive);
 	}
 	
+	/**
+	 * Creates a new instance of the ClientCommunicationsLibrary over the given transport
+	 * @param serverAddress - the address of the server
+	 * @param username - the address of the client
+	 * @param action - the action to take when a new message arrives. This will be called by the default
+	 * dispatcher: a pool of threads, or virtual threads if they were asked for, see VirtualThreads.
+	 * @param transports - starts the transport of the client, such as a LoopbackNetwork for benchmarks and tests.
+	 */
+	public ClientCommunicationsLibrary(String serverAddress, String username, Consumer<String> action, 
+			TransportFactory transports) {
+		this(serverAddress, username, action, MessageDispatcher.createDefault(), transports);
+	}
+	
+	/**
+	 * Creates a new instance of the ClientCommunicationsLibrary over the given transport and dispatcher
+	 * @param serverAddress - the address of the server
+	 * @param username - the address of the client
+	 * @param action - the action to take when a new message arrives. This will be called by the dispatcher.
+	 * @param dispatcher - runs the action, such as MessageDispatcher.virtualThreads(). it is shut down on stop.
+	 * @param transports - starts the transport of the client, such as a LoopbackNetwork for benchmarks and tests.
+	 */
+	public ClientCommunicationsLibrary(String serverAddress, String username, Consumer<String> action, 
+			MessageDispatcher dispatcher, TransportFactory transports) {
+		this.serverAddress = serverAddress;
+		this.username = username;
+		applicationAction = action;
+		
+		messenger = new ReliableMessenger(username, libraryActionOnReceive, 1, dispatcher, transports);
+	}
+	
 	/**
 	 * Creates a new instance of the ClientCommunicationsLibrary
 	 * @param serverAddress - the address of the server
 	 * @param username - the address of the client
-	 * @param action - the action to take when a new message arrives. This will be called in a separate thread.
+	 * @param action - the action to take when a new message arrives. This will be called by the dispatcher of the messenger.
 	 * @param messenger - a messenger to use for sending messages.
 	 */
 	public ClientCommunicationsLibrary(String serverAddress, String username, Consumer<String> action, ReliableMessenger messenger) {
@@ -51,6 +89,15 @@ public class ClientCommunicationsLibrary {
 		this.messenger = messenger;
 	}
 	
+	/**
+	 * Creates a client that is one of the identities of the endpoint, see {@link MultiplexedClientEndpoint#open}
+	 */
+	ClientCommunicationsLibrary(String serverAddress, String username, Consumer<String> action, 
+			MultiplexedClientEndpoint endpoint) {
+		this(serverAddress, username, action, endpoint.getMessenger());
+		this.endpoint = endpoint;
+	}
+	
 	/**
 	 * Sends a message to another client via the server
 	 */
@@ -58,6 +105,21 @@ public class ClientCommunicationsLibrary {
 		sendAux(payload, MessageType.NEW_MESSAGE);
 	}
 	
+	/**
+	 * Sends a message to another client via the server, in the given priority class.
+	 * The server handles control messages ahead of the bulk messages of other clients,
+	 * and after the messages this client sent before.
+	 */
+	public void send(String payload, Priority priority) {
+		if (payload == null || priority == null){
+			throw new IllegalArgumentException();
+		}
+		
+		Message msg = new Message(username, payload, MessageType.NEW_MESSAGE);
+		msg.setPriority(priority);
+		messenger.Send(serverAddress, msg);
+	}
+	
 	/**
 	 * Sends a message to another client via the server when the server is expecting a reply
 	 * to a previous message he sent.
@@ -88,11 +150,60 @@ public class ClientCommunicationsLibrary {
 		return reply;
 	}
 	
+	/**
+	 * Sends a message to another client via the server without waiting for the server to receive it
+	 * @return a future completed when the server acknowledges the message
+	 */
+	public CompletableFuture<Void> sendAsync(String payload) {
+		if (payload == null){
+			throw new IllegalArgumentException();
+		}
+		
+		return messenger.SendAsync(serverAddress, new Message(username, payload, MessageType.NEW_MESSAGE));
+	}
+	
+	/**
+	 * Sends a reply to the server without waiting for the server to receive it
+	 * @return a future completed when the server acknowledges the reply
+	 */
+	public CompletableFuture<Void> sendReplyAsync(String payload) {
+		if (payload == null){
+			throw new IllegalArgumentException();
+		}
+		
+		return messenger.SendAsync(serverAddress, new Message(username, payload, MessageType.REPLIED_MESSAGE));
+	}
+	
+	/**
+	 * Sends a message to the server without waiting for its reply
+	 * @return a future completed with the reply of the server
+	 */
+	public CompletableFuture<String> sendAndAwaitReplyAsync(String payload) {
+		if (payload == null){
+			throw new IllegalArgumentException();
+		}
+		
+		return messenger.SendAndAwaitReplyAsync(serverAddress, new Message(username, payload, MessageType.NEW_MESSAGE));
+	}
+	
+	/**
+	 * Sets whether messages from the server are handed to the action in the order the server sent them,
+	 * rather than in the order they arrived.
+	 */
+	public void setOrderedDelivery(boolean orderedDelivery) {
+		messenger.setOrderedDelivery(orderedDelivery);
+	}
+	
 	/**
 	 * Stops the communications library; cleaning any resources
 	 */
 	public void stop() {
-		messenger.kill();
+		if (endpoint != null){
+			// the messenger is shared with the other identities of the endpoint
+			endpoint.close(username);
+		}else{
+			messenger.kill();
+		}
 		messenger = null;
 	}
 	
@@ -101,7 +212,7 @@ public class ClientCommunicationsLibrary {
 	 * @return the address
 	 */
 	public String getAddress() {
-		return messenger.getAddress();
+		return endpoint != null ? username : messenger.getAddress();
 	}
 }
 	
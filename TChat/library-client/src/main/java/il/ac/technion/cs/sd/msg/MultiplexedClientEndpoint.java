@@ -0,0 +1,92 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Hosts many client identities on one address: they share one transport, one messenger that
+ * sequences and acknowledges their messages, and one dispatcher that runs their actions.
+ * Messages of an identity carry the address of the endpoint, so the server acks the endpoint and
+ * sends the messages for the identity to it, marked with the identity they are for. The endpoint
+ * then hands each message to the action of its identity; the messages of each identity are handled
+ * one at a time, in order, and those of different identities in parallel.
+ * Replies are matched to the request of the identity that awaits them by their request id.
+ */
+public class MultiplexedClientEndpoint {
+	private final ReliableMessenger messenger;
+	private final ConcurrentMap<String, ClientCommunicationsLibrary> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates an endpoint over the messaging artifact
+	 * @param address - the address of the endpoint, which must differ from the usernames it hosts
+	 */
+	public MultiplexedClientEndpoint(String address) {
+		this(address, 1, MessageDispatcher.createDefault(), TransportFactory.messenger());
+	}
+
+	/**
+	 * Creates a new endpoint
+	 * @param address - the address of the endpoint, which must differ from the usernames it hosts
+	 * @param sendWindowSize - the maximal number of unacknowledged messages to the server, of all the identities
+	 * @param dispatcher - runs the actions of all the identities. it is shut down when the endpoint is killed
+	 * @param transports - starts the transport of the endpoint
+	 */
+	public MultiplexedClientEndpoint(String address, int sendWindowSize, MessageDispatcher dispatcher,
+			TransportFactory transports) {
+		messenger = new ReliableMessenger(address, this::route, sendWindowSize, dispatcher, transports);
+	}
+
+	/**
+	 * Adds an identity to the endpoint
+	 * @param serverAddress - the address of the server
+	 * @param username - the identity, unique within the endpoint
+	 * @param action - the action to take when a new message for the identity arrives
+	 * @return the library of the identity. stopping it removes the identity from the endpoint
+	 */
+	public ClientCommunicationsLibrary open(String serverAddress, String username, Consumer<String> action) {
+		if (serverAddress == null || username == null || action == null || username.equals(getAddress())){
+			throw new IllegalArgumentException();
+		}
+		ClientCommunicationsLibrary $ = new ClientCommunicationsLibrary(serverAddress, username, action, this);
+		if (clients.putIfAbsent(username, $) != null){
+			throw new IllegalArgumentException("username " + username + " is already open");
+		}
+		return $;
+	}
+
+	void close(String username) {
+		clients.remove(username);
+	}
+
+	private void route(Message msg) {
+		// messages for an identity that was closed meanwhile are dropped
+		ClientCommunicationsLibrary client = msg.getTo() == null ? null : clients.get(msg.getTo());
+		if (client != null){
+			client.libraryActionOnReceive.accept(msg);
+		}
+	}
+
+	ReliableMessenger getMessenger() {
+		return messenger;
+	}
+
+	public String getAddress() {
+		return messenger.getAddress();
+	}
+
+	/**
+	 * @return the number of identities open on the endpoint
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Stops the endpoint and all of its identities
+	 */
+	public void kill() {
+		clients.clear();
+		messenger.kill();
+	}
+}
@@ -54,4 +54,16 @@ public class ClientCommunicationsLibraryUnitTests {
 		Mockito.when(mockMessenger.SendAndAwaitReply("server", new Message("client", "Hi", MessageType.NEW_MESSAGE))).thenReturn("result");
 		assertEquals("result", clientLibrary.sendAndAwaitReply("Hi"));
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void sendAsyncSendsToSuppliedServerAddressWithCorrectMessage() throws Exception {
+		clientLibrary.sendAsync("Hi");
+		Mockito.verify(mockMessenger, Mockito.only()).SendAsync("server", new Message("client", "Hi", MessageType.NEW_MESSAGE));
+	}
+	
+	@Test
+	public void sendAndAwaitReplyAsyncSendsToSuppliedServerAddressWithCorrectMessage() throws Exception {
+		clientLibrary.sendAndAwaitReplyAsync("Hi");
+		Mockito.verify(mockMessenger, Mockito.only()).SendAndAwaitReplyAsync("server", new Message("client", "Hi", MessageType.NEW_MESSAGE));
+	}
+}
@@ -0,0 +1,133 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.*;
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiplexedClientEndpointUnitTests {
+	private final LoopbackNetwork network = new LoopbackNetwork();
+	private ReliableMessenger server;
+	private MultiplexedClientEndpoint endpoint;
+
+	@Before
+	public void init() {
+		// echoes every message back to its sender, and replies to the ones awaiting a reply
+		server = new ReliableMessenger("server", msg -> {
+			if (msg.getRequestId() != 0){
+				Message reply = new Message("server", "re: " + msg.getContent(), MessageType.REPLIED_MESSAGE);
+				reply.setInReplyTo(msg.getRequestId());
+				server.SendAsync(msg.getFrom(), reply);
+			}else{
+				server.SendAsync(msg.getFrom(), new Message("server", msg.getFrom() + " said " + msg.getContent(),
+						MessageType.NEW_MESSAGE));
+			}
+		}, 8, MessageDispatcher.boundedPool(2), network);
+		endpoint = new MultiplexedClientEndpoint("gateway", 8, MessageDispatcher.boundedPool(2), network);
+	}
+
+	@After
+	public void kill() {
+		endpoint.kill();
+		server.kill();
+	}
+
+	@Test(timeout = 10000)
+	public void messagesAreRoutedToTheirIdentity() throws Exception {
+		int count = 50;
+		List<BlockingQueue<String>> inboxes = new ArrayList<>();
+		List<ClientCommunicationsLibrary> clients = new ArrayList<>();
+		for (int i = 0; i < count; i++){
+			BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+			inboxes.add(inbox);
+			clients.add(endpoint.open("server", "user" + i, inbox::add));
+		}
+		assertEquals(count, endpoint.getClientCount());
+		for (int i = 0; i < count; i++){
+			clients.get(i).send("hello");
+		}
+		for (int i = 0; i < count; i++){
+			assertEquals("user" + i + " said hello", inboxes.get(i).take());
+			assertNull(inboxes.get(i).poll(1, TimeUnit.MILLISECONDS));
+		}
+		assertEquals("user0", clients.get(0).getAddress());
+	}
+
+	@Test(timeout = 10000)
+	public void repliesReachTheIdentityAwaitingThem() throws Exception {
+		ClientCommunicationsLibrary alice = endpoint.open("server", "alice", x -> {});
+		ClientCommunicationsLibrary bob = endpoint.open("server", "bob", x -> {});
+		assertEquals("re: from bob", bob.sendAndAwaitReplyAsync("from bob").get());
+		assertEquals("re: from alice", alice.sendAndAwaitReply("from alice"));
+	}
+
+	@Test(timeout = 10000)
+	public void stoppedIdentityIsClosedWithoutKillingTheEndpoint() throws Exception {
+		BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+		endpoint.open("server", "alice", x -> {}).stop();
+		assertEquals(0, endpoint.getClientCount());
+		endpoint.open("server", "alice", inbox::add).send("again");
+		assertEquals("alice said again", inbox.take());
+	}
+
+	@Test(timeout = 10000)
+	public void failuresNameTheIdentity() throws Exception {
+		BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+		endpoint.open("server", "alice", inbox::add).send("hi");
+		assertEquals("alice said hi", inbox.take());
+		BlockingQueue<String> failedPeers = new LinkedBlockingQueue<>();
+		server.setPeerFailureListener(failedPeers::add);
+		// the endpoint goes away, and a new one takes its place for the @After
+		endpoint.kill();
+		endpoint = new MultiplexedClientEndpoint("other gateway", 8, MessageDispatcher.boundedPool(2), network);
+		try {
+			server.SendAsync("alice", new Message("server", "are you there?", MessageType.NEW_MESSAGE), 100).join();
+			fail();
+		} catch (CompletionException e) {
+			DeliveryFailedException failure = (DeliveryFailedException)e.getCause();
+			assertEquals("alice", failure.getDestination());
+			assertEquals("gateway", failure.getAddress());
+		}
+		assertEquals("alice", failedPeers.take());
+	}
+
+	@Test(timeout = 10000)
+	public void routesOutliveARestartInTheOutbox() throws Exception {
+		Path directory = Files.createTempDirectory("outbox-test");
+		Path file = directory.resolve("outbox.log");
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ReliableMessenger hub = new ReliableMessenger("hub", msg -> received.add(msg.getContent()), 8,
+				MessageDispatcher.boundedPool(1), network);
+		hub.setOutbox(new DurableOutbox(file));
+		BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+		endpoint.open("hub", "alice", inbox::add).send("hi");
+		assertEquals("hi", received.take());
+		hub.kill();
+
+		ReliableMessenger restarted = new ReliableMessenger("hub", msg -> {}, 8, MessageDispatcher.boundedPool(1), network);
+		restarted.setOutbox(new DurableOutbox(file));
+		// reaches alice through the endpoint before she sends again
+		restarted.SendAsync("alice", new Message("hub", "welcome back", MessageType.NEW_MESSAGE));
+		assertEquals("welcome back", inbox.take());
+		restarted.kill();
+		Files.delete(file);
+		Files.delete(directory);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void usernameIsUniqueWithinTheEndpoint() {
+		endpoint.open("server", "alice", x -> {});
+		endpoint.open("server", "alice", x -> {});
+	}
+}
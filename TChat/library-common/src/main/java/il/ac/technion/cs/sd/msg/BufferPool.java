@@ -0,0 +1,76 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reuses direct buffers of a single size, which are costly to allocate and free.
+ * Buffers of any other size, or heap buffers, are left to the garbage collector when released.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize the capacity of the buffers
+	 * @param maxPooled the maximal number of free buffers kept for reuse
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize < 1 || maxPooled < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared direct buffer of the size of the pool
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer $ = free.poll();
+		if ($ == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		$.clear();
+		return $;
+	}
+
+	/**
+	 * Returns the buffer for reuse. It must not be used afterwards.
+	 */
+	void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.add(buffer);
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return the number of free buffers kept for reuse
+	 */
+	int getPooled() {
+		return pooled.get();
+	}
+
+	/**
+	 * @return the number of buffers the pool allocated, free or not
+	 */
+	int getAllocated() {
+		return allocated.get();
+	}
+}
@@ -0,0 +1,177 @@
+package il.ac.technion.cs.sd.msg;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packs the messages queued for a single destination within a short delay into one batch,
+ * which is sequenced and acknowledged as a single message.
+ * A batch is sent once it reaches maxBatchSize characters, or maxDelay after its first message
+ * was queued and the send window has room for it. While the window is full the batch keeps growing.
+ */
+class Coalescer {
+	private final String from;
+	private final long maxDelayInMs;
+	private final int maxBatchSize;
+	private final SendWindow window;
+	private final ScheduledExecutorService timer;
+
+	// batches enter the window one at a time, in the order they were closed
+	private final ReentrantLock sendLock = new ReentrantLock(true);
+
+	private List<Message> batch = new ArrayList<>();
+	private int batchSize = 0;
+	private CompletableFuture<Void> batchAcked = new CompletableFuture<>();
+	// the earliest deadline of the messages in the batch
+	private long batchDeadline = SendWindow.NO_DEADLINE;
+	private boolean flushScheduled = false;
+	// the timer of the current batch, cancelled when the batch is sent before it expires
+	private ScheduledFuture<?> scheduledFlush = null;
+	// the number of batches sent. a timer only sends the batch it was scheduled for
+	private long generation = 0;
+
+	/**
+	 * @param from the address of the sending messenger
+	 * @param maxDelayInMs the longest time a message waits for others to join its batch
+	 * @param maxBatchSize the encoded size, in characters, at which a batch is sent at once
+	 * @param window the window towards the destination
+	 * @param timer sends the batches whose delay expired. it is never blocked
+	 */
+	Coalescer(String from, long maxDelayInMs, int maxBatchSize, SendWindow window, ScheduledExecutorService timer) {
+		this.from = from;
+		this.maxDelayInMs = maxDelayInMs;
+		this.maxBatchSize = maxBatchSize;
+		this.window = window;
+		this.timer = timer;
+	}
+
+	/**
+	 * Queues the message in the current batch.
+	 * @param urgent when set, the batch is sent at once, blocking while the window is full
+	 * @param deadline the System.nanoTime by which the message must be acknowledged, or SendWindow.NO_DEADLINE
+	 * @return a future completed when the batch of the message is acknowledged
+	 */
+	CompletableFuture<Void> add(Message msg, boolean urgent, long deadline) {
+		CompletableFuture<Void> $;
+		boolean isFull;
+		synchronized (this) {
+			batch.add(msg);
+			// the content and a rough allowance for the header of the message
+			batchSize += (msg.getContent() == null ? 0 : msg.getContent().length()) + 16;
+			$ = batchAcked;
+			batchDeadline = Math.min(batchDeadline, deadline);
+			isFull = urgent || batchSize >= maxBatchSize;
+			if (!isFull && !flushScheduled) {
+				flushScheduled = true;
+				schedule();
+			}
+		}
+		if (isFull) {
+			flush();
+		}
+		return $;
+	}
+
+	/**
+	 * Sends the current batch, blocking while the window is full.
+	 */
+	void flush() {
+		sendLock.lock();
+		try {
+			sendBatch();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private void flushOnTimer(long batchGeneration) {
+		// the timer must not block, so the batch waits for another tick if it cannot be sent now
+		if (!sendLock.tryLock()) {
+			reschedule(batchGeneration);
+			return;
+		}
+		try {
+			synchronized (this) {
+				// the batch was already sent, by a flush that raced with this timer.
+				// batches are only sent holding the send lock, so this cannot change before sendBatch
+				if (batchGeneration != generation) {
+					return;
+				}
+			}
+			if (!window.hasFreeSlot()) {
+				reschedule(batchGeneration);
+				return;
+			}
+			sendBatch();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private synchronized void reschedule(long batchGeneration) {
+		if (batchGeneration == generation) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Schedules the timer of the current batch. Called holding the monitor of this
+	 */
+	private void schedule() {
+		long batchGeneration = generation;
+		try {
+			scheduledFlush = timer.schedule(() -> flushOnTimer(batchGeneration), maxDelayInMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the messenger was killed
+		}
+	}
+
+	private void sendBatch() {
+		List<Message> messages;
+		CompletableFuture<Void> acked;
+		long deadline;
+		synchronized (this) {
+			if (batch.isEmpty()) {
+				return;
+			}
+			messages = batch;
+			acked = batchAcked;
+			deadline = batchDeadline;
+			batch = new ArrayList<>();
+			batchDeadline = SendWindow.NO_DEADLINE;
+			batchSize = 0;
+			batchAcked = new CompletableFuture<>();
+			flushScheduled = false;
+			generation++;
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+		}
+		window.send(pack(messages), deadline).whenComplete((result, failure) -> {
+			if (failure != null) {
+				acked.completeExceptionally(failure);
+			} else {
+				acked.complete(null);
+			}
+		});
+	}
+
+	private Message pack(List<Message> messages) {
+		Message first = messages.get(0);
+		if (messages.size() == 1) {
+			return first;
+		}
+		Message $ = new Message(from, EnvelopeCodec.pack(messages), MessageType.BATCH);
+		$.setSession(first.getSession());
+		return $;
+	}
+}
@@ -0,0 +1,68 @@
+package il.ac.technion.cs.sd.msg;
+
+/**
+ * Thrown, or set as the failure of a send future, when a message could not be delivered:
+ * it was not acknowledged within its deadline or its maximal number of retransmissions.
+ */
+public class DeliveryFailedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final String destination;
+	private final String address;
+	private final int retransmissions;
+	private final String reason;
+
+	/**
+	 * @param destination the address the message was sent to
+	 * @param retransmissions the number of times the message was retransmitted before giving up
+	 * @param reason why the message was given up on
+	 */
+	public DeliveryFailedException(String destination, int retransmissions, String reason) {
+		this(destination, destination, retransmissions, reason);
+	}
+
+	/**
+	 * @param destination the identity the message was sent to
+	 * @param address the address the message was transmitted to: the destination, or the address of
+	 * the endpoint hosting it, such as a multiplexed client endpoint
+	 * @param retransmissions the number of times the message was retransmitted before giving up
+	 * @param reason why the message was given up on
+	 */
+	public DeliveryFailedException(String destination, String address, int retransmissions, String reason) {
+		super("message to " + destination + (address.equals(destination) ? "" : " through " + address)
+				+ " was not delivered: " + reason);
+		this.destination = destination;
+		this.address = address;
+		this.retransmissions = retransmissions;
+		this.reason = reason;
+	}
+
+	/**
+	 * @return the same failure, of a message to the identity, hosted at the address of this one
+	 */
+	DeliveryFailedException toIdentity(String identity) {
+		return new DeliveryFailedException(identity, address, retransmissions, reason);
+	}
+
+	/**
+	 * @return the identity the message was sent to
+	 */
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @return the address the message was transmitted to, which differs from the destination when
+	 * it is hosted by an endpoint of another address
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the number of times the message was retransmitted before giving up
+	 */
+	public int getRetransmissions() {
+		return retransmissions;
+	}
+}
@@ -0,0 +1,86 @@
+package il.ac.technion.cs.sd.msg;
+
+import il.ac.technion.cs.sd.msg.ReceiveWindow.Verdict;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes retransmissions of messages that were already received, by their sender,
+ * session and sequence number.
+ * Tracks a bounded number of senders, each in a bounded window, so the memory used is fixed
+ * however many peers there are. The window of the least recently heard sender is forgotten first;
+ * when it is heard from again, its messages tell up to where its stream was already acknowledged.
+ */
+class DuplicateFilter {
+	static final int DEFAULT_MAX_SENDERS = 4096;
+	static final int DEFAULT_WINDOW_SIZE = 1024;
+
+	private final int windowSize;
+	private final AtomicLong duplicatesDropped = new AtomicLong();
+	private final Map<String, ReceiveWindow> windows;
+
+	DuplicateFilter() {
+		this(DEFAULT_MAX_SENDERS, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param maxSenders the number of senders to keep track of
+	 * @param windowSize the number of sequence numbers after a gap to keep track of per sender
+	 */
+	DuplicateFilter(int maxSenders, int windowSize) {
+		this.windowSize = windowSize;
+		windows = new LinkedHashMap<String, ReceiveWindow>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ReceiveWindow> eldest) {
+				return size() > maxSenders;
+			}
+		};
+	}
+
+	/**
+	 * Records a received sequenced message
+	 * @return the verdict on the message
+	 */
+	Verdict record(Message msg) {
+		Verdict $ = windowOf(msg).record(msg.getSeq(), msg.getAck());
+		if ($ == Verdict.DUPLICATE) {
+			duplicatesDropped.incrementAndGet();
+		}
+		return $;
+	}
+
+	/**
+	 * @return true if the sequenced message is a retransmission of one received already. it is not recorded
+	 */
+	boolean isReceived(Message msg) {
+		return windowOf(msg).isReceived(msg.getSeq(), msg.getAck());
+	}
+
+	/**
+	 * @return the sequence number up to which every message of the stream of msg was received
+	 */
+	long receivedUpTo(Message msg) {
+		return windowOf(msg).getReceivedUpTo();
+	}
+
+	/**
+	 * @return the number of retransmitted messages that were recognized and dropped
+	 */
+	long getDuplicatesDropped() {
+		return duplicatesDropped.get();
+	}
+
+	private synchronized ReceiveWindow windowOf(Message msg) {
+		ReceiveWindow $ = windows.get(msg.peer());
+		// a new session means the peer was restarted and its stream starts over
+		if ($ == null || $.getSession() != msg.getSession()) {
+			$ = new ReceiveWindow(msg.getSession(), windowSize);
+			windows.put(msg.peer(), $);
+		}
+		return $;
+	}
+}
@@ -0,0 +1,446 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log, in a memory-mapped file, of the messages a {@link ReliableMessenger} sent and
+ * was not acknowledged for yet, so they are sent again by the messenger that opens the log after a
+ * restart. See {@link ReliableMessenger#setOutbox(DurableOutbox)}.
+ * A message is recorded before it is transmitted, and marked done once it is acknowledged or given
+ * up on. Records written to the mapping outlive a crash of the process at once; the mapping is
+ * forced to the disk at most once per force interval, so a crash of the host may lose the records
+ * of the last interval, and forcing holds up neither records nor dones. When the file fills past
+ * three quarters, the records still pending are copied, on the thread of the outbox, to a new file
+ * that replaces it. If it fills up meanwhile, the caller maps the file at twice its size, which
+ * neither copies nor forces records, and leaves the compaction to the thread of the outbox.
+ * The messenger marks messages done, and records routes, on the thread of the outbox, as it does so
+ * on the receiving thread of its transport, which must not wait for the outbox.
+ * The log also holds the routes of the messenger, from the identities hosted by endpoints of other
+ * addresses to those addresses, so a restarted messenger reaches them before they send again.
+ * A record is its length, its kind, the id of its message and, for a sent message, its destination
+ * and encoding, or for a route, its identity and address. The length is written last, so a record
+ * torn by a crash reads as the end of the log.
+ * Messages sent again after a restart carry a new session, so a peer that received them before the
+ * crash may receive them twice.
+ */
+public class DurableOutbox implements AutoCloseable {
+	public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+	public static final long DEFAULT_FORCE_INTERVAL_IN_MS = 10;
+	private static final byte SENT = 1;
+	private static final byte DONE = 2;
+	private static final byte ROUTE = 3;
+	// the length, the kind and the id
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+	private final Path file;
+	private int capacity;
+	private MappedByteBuffer log;
+	// the messages recorded and not marked done, by id, oldest first
+	private final Map<Long, Entry> pending = new LinkedHashMap<>();
+	// the address of each identity hosted by an endpoint of another address
+	private final Map<String, String> routes = new HashMap<>();
+	private long nextId = 1;
+	private boolean dirty = false;
+	private boolean closed = false;
+	private boolean isCompactionScheduled = false;
+	// the log was grown since it was last compacted
+	private boolean isGrown = false;
+	private long forces = 0;
+	private long compactions = 0;
+	// forces the log, and does the work that callers must not wait for
+	private final ScheduledExecutorService worker;
+
+	/**
+	 * A message recorded and not marked done
+	 */
+	static class Entry {
+		final long id;
+		final String to;
+		final String encoded;
+
+		Entry(long id, String to, String encoded) {
+			this.id = id;
+			this.to = to;
+			this.encoded = encoded;
+		}
+	}
+
+	/**
+	 * Opens the log in the file, or creates it, with the default capacity and force interval
+	 */
+	public DurableOutbox(Path file) throws IOException {
+		this(file, DEFAULT_CAPACITY, DEFAULT_FORCE_INTERVAL_IN_MS);
+	}
+
+	/**
+	 * Opens the log in the file, or creates it
+	 * @param capacity the size of the file, in bytes. it grows if the pending records do not fit
+	 * @param forceIntervalInMs the longest time a record waits to be forced to the disk
+	 */
+	public DurableOutbox(Path file, int capacity, long forceIntervalInMs) throws IOException {
+		if (file == null || capacity < RECORD_HEADER_SIZE || forceIntervalInMs <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.file = file;
+		this.capacity = capacity;
+		if (Files.exists(file)) {
+			replay(map(file, 0));
+		}
+		// starts over in a file holding only the pending records
+		compact();
+		worker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "outbox-" + file.getFileName());
+			t.setDaemon(true);
+			return t;
+		});
+		worker.scheduleWithFixedDelay(this::forceIfDirty, forceIntervalInMs, forceIntervalInMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param size the size to map, or 0 for the size of the file
+	 */
+	private static MappedByteBuffer map(Path file, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return channel.map(MapMode.READ_WRITE, 0, size == 0 ? channel.size() : size);
+		}
+	}
+
+	/**
+	 * Reads the records of a previous log into pending
+	 */
+	private void replay(MappedByteBuffer previous) {
+		while (previous.remaining() >= RECORD_HEADER_SIZE) {
+			int start = previous.position();
+			int length = previous.getInt();
+			if (length < RECORD_HEADER_SIZE || length > previous.limit() - start) {
+				// the end of the log, or a record torn by a crash
+				break;
+			}
+			byte kind = previous.get();
+			long id = previous.getLong();
+			nextId = Math.max(nextId, id + 1);
+			if (kind == SENT || kind == ROUTE) {
+				String to = readString(previous);
+				byte[] encoded = new byte[start + length - previous.position()];
+				previous.get(encoded);
+				String value = new String(encoded, StandardCharsets.UTF_8);
+				if (kind == SENT) {
+					pending.put(id, new Entry(id, to, value));
+				} else if (value.equals(to)) {
+					routes.remove(to);
+				} else {
+					routes.put(to, value);
+				}
+			} else {
+				pending.remove(id);
+			}
+			previous.position(start + length);
+		}
+	}
+
+	private static String readString(MappedByteBuffer buffer) {
+		byte[] $ = new byte[buffer.getInt()];
+		buffer.get($);
+		return new String($, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Records a message about to be sent
+	 * @return the id to mark the message done with
+	 */
+	public synchronized long record(String to, Message msg) {
+		if (to == null || msg == null) {
+			throw new IllegalArgumentException();
+		}
+		if (closed) {
+			throw new RuntimeException("outbox " + file + " was closed");
+		}
+		Entry entry = new Entry(nextId++, to, msg.encode());
+		pending.put(entry.id, entry);
+		append(entry);
+		compactSoonIfFilling();
+		return entry.id;
+	}
+
+	/**
+	 * Marks a message done, so it is not sent again after a restart. Does nothing if it already is
+	 */
+	public synchronized void done(long id) {
+		if (closed || pending.remove(id) == null) {
+			return;
+		}
+		byte[] none = new byte[0];
+		makeRoom(DONE, none, none);
+		write(DONE, id, none, none);
+		compactSoonIfFilling();
+	}
+
+	/**
+	 * Marks a message done on the thread of the outbox, so the caller waits for neither its lock
+	 * nor a compaction. Does nothing once the outbox is closed
+	 */
+	void doneLater(long id) {
+		later(() -> done(id));
+	}
+
+	/**
+	 * Records that the messages for the identity are sent to the address, or, if the address is the
+	 * identity itself, that they are no longer routed. Does nothing if the route is already recorded
+	 */
+	public synchronized void recordRoute(String identity, String address) {
+		if (identity == null || address == null) {
+			throw new IllegalArgumentException();
+		}
+		if (closed || address.equals(routes.getOrDefault(identity, identity))) {
+			return;
+		}
+		if (address.equals(identity)) {
+			routes.remove(identity);
+		} else {
+			routes.put(identity, address);
+		}
+		byte[] to = identity.getBytes(StandardCharsets.UTF_8);
+		byte[] value = address.getBytes(StandardCharsets.UTF_8);
+		makeRoom(ROUTE, to, value);
+		write(ROUTE, 0, to, value);
+		compactSoonIfFilling();
+	}
+
+	/**
+	 * Records a route on the thread of the outbox, in the order of the calls, see
+	 * {@link #recordRoute(String, String)}. Does nothing once the outbox is closed
+	 */
+	void recordRouteLater(String identity, String address) {
+		if (identity == null || address == null) {
+			throw new IllegalArgumentException();
+		}
+		later(() -> recordRoute(identity, address));
+	}
+
+	private void later(Runnable task) {
+		try {
+			worker.execute(task);
+		} catch (RejectedExecutionException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Compacts the log on the thread of the outbox once it fills past three quarters, or was grown
+	 */
+	private void compactSoonIfFilling() {
+		if (isCompactionScheduled || !needsCompaction()) {
+			return;
+		}
+		isCompactionScheduled = true;
+		later(() -> {
+			synchronized (this) {
+				isCompactionScheduled = false;
+				if (!closed && needsCompaction()) {
+					compact();
+				}
+			}
+		});
+	}
+
+	private boolean needsCompaction() {
+		return isGrown || log.position() > capacity / 4 * 3;
+	}
+
+	private void append(Entry entry) {
+		byte[] to = entry.to.getBytes(StandardCharsets.UTF_8);
+		byte[] encoded = entry.encoded.getBytes(StandardCharsets.UTF_8);
+		makeRoom(SENT, to, encoded);
+		write(SENT, entry.id, to, encoded);
+	}
+
+	private static int lengthOf(byte kind, byte[] to, byte[] encoded) {
+		return RECORD_HEADER_SIZE + (kind == SENT || kind == ROUTE ? 4 + to.length + encoded.length : 0);
+	}
+
+	private boolean fits(byte kind, byte[] to, byte[] encoded) {
+		// room is left for the length of the next record, which reads as 0 at the end of the log
+		return log.remaining() >= lengthOf(kind, to, encoded) + 4;
+	}
+
+	/**
+	 * Grows the log if the record does not fit, by mapping the file at twice its size or more. The
+	 * records already written stay where they are, so unlike a compaction nothing is copied or forced,
+	 * and the caller waits only for the file to be extended and mapped
+	 */
+	private void makeRoom(byte kind, byte[] to, byte[] encoded) {
+		if (fits(kind, to, encoded)) {
+			return;
+		}
+		int position = log.position();
+		while (capacity - position < lengthOf(kind, to, encoded) + 4) {
+			capacity *= 2;
+		}
+		try {
+			log = map(file, capacity);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot write outbox " + file, e);
+		}
+		log.position(position);
+		isGrown = true;
+	}
+
+	private void write(byte kind, long id, byte[] to, byte[] encoded) {
+		int start = log.position();
+		log.position(start + 4);
+		log.put(kind);
+		log.putLong(id);
+		if (kind == SENT || kind == ROUTE) {
+			log.putInt(to.length);
+			log.put(to);
+			log.put(encoded);
+		}
+		int end = log.position();
+		// the length is written last, so the record is not read before it is whole
+		log.putInt(start, end - start);
+		dirty = true;
+	}
+
+	/**
+	 * Writes the routes and the pending records to a new file that replaces the log
+	 */
+	private void compact() {
+		int needed = 4;
+		List<byte[][]> routeRecords = new ArrayList<>();
+		for (Map.Entry<String, String> route : routes.entrySet()) {
+			byte[][] record = { route.getKey().getBytes(StandardCharsets.UTF_8), route.getValue().getBytes(StandardCharsets.UTF_8) };
+			routeRecords.add(record);
+			needed += lengthOf(ROUTE, record[0], record[1]);
+		}
+		List<byte[][]> records = new ArrayList<>();
+		for (Entry entry : pending.values()) {
+			byte[][] record = { entry.to.getBytes(StandardCharsets.UTF_8), entry.encoded.getBytes(StandardCharsets.UTF_8) };
+			records.add(record);
+			needed += lengthOf(SENT, record[0], record[1]);
+		}
+		while (capacity < 2 * needed) {
+			capacity *= 2;
+		}
+		Path created = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.deleteIfExists(created);
+			log = map(created, capacity);
+			for (byte[][] record : routeRecords) {
+				write(ROUTE, 0, record[0], record[1]);
+			}
+			int i = 0;
+			for (Entry entry : pending.values()) {
+				byte[][] record = records.get(i++);
+				write(SENT, entry.id, record[0], record[1]);
+			}
+			log.force();
+			// moved in whole, so a crash leaves either the old log or the new one
+			Files.move(created, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot write outbox " + file, e);
+		}
+		dirty = false;
+		isGrown = false;
+		compactions++;
+	}
+
+	/**
+	 * Forces the log without its lock, so records and dones are not held up by the disk. A record
+	 * written meanwhile marks the log dirty again, and is forced the next time
+	 */
+	private void forceIfDirty() {
+		MappedByteBuffer written;
+		synchronized (this) {
+			if (!dirty || closed) {
+				return;
+			}
+			dirty = false;
+			written = log;
+		}
+		// a log replaced meanwhile was forced whole by the compaction, and forcing it again is harmless
+		written.force();
+		synchronized (this) {
+			forces++;
+		}
+	}
+
+	/**
+	 * @return the messages recorded and not marked done, oldest first
+	 */
+	synchronized List<Entry> getPending() {
+		return new ArrayList<>(pending.values());
+	}
+
+	/**
+	 * @return the recorded routes, from each identity to the address of the endpoint hosting it
+	 */
+	public synchronized Map<String, String> getRoutes() {
+		return new HashMap<>(routes);
+	}
+
+	/**
+	 * @return the number of messages recorded and not marked done
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of times records were forced to the disk, each time covering all the records
+	 * written since the previous time
+	 */
+	public synchronized long getForces() {
+		return forces;
+	}
+
+	/**
+	 * @return the number of times the log was replaced by a file of its pending records
+	 */
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 * Waits for the work queued on the thread of the outbox, forces the records to the disk and
+	 * closes the log. The pending messages stay in the file
+	 */
+	@Override
+	public void close() {
+		// the periodic force is cancelled, and the dones queued so far are marked
+		worker.shutdown();
+		try {
+			worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (dirty) {
+				log.force();
+				forces++;
+			}
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package il.ac.technion.cs.sd.msg;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes messages in a compact, length prefixed envelope, instead of json.
+ * The payload is copied as is, without the escaping json requires, and an ack can be
+ * recognized by its first characters alone.
+ * The messenger only carries strings, so the envelope is made of characters rather than bytes:
+ * <pre>
+ * '~' version type session ';' seq ';' ack ';' [tag length ':' value]* '|' length ':' from content
+ * </pre>
+ * Numbers are written in base 36. The type is N (new message), R (replied message), A (ack), B (batch)
+ * or F (fragment).
+ * Tagged fields are optional; a decoder skips the tags it does not know, so fields can be added
+ * without changing the version. The known tags are q (request id) and r (in reply to), written
+ * only when not 0, p (priority), written only for control messages, and z (compression), written
+ * only when the content is compressed: deflated from UTF-8 and then written in Base64, as the
+ * messenger cannot carry raw bytes. t (to) and v (via) are written only when set, for messages
+ * between identities that share an address. The content takes the rest of the string.
+ */
+class EnvelopeCodec {
+	static final char MARKER = '~';
+	static final char VERSION = '1';
+
+	private static final char NEW_MESSAGE = 'N';
+	private static final char REPLIED_MESSAGE = 'R';
+	private static final char ACK = 'A';
+	private static final char BATCH = 'B';
+	private static final char FRAGMENT = 'F';
+
+	private static final char NUMBER_END = ';';
+	private static final char LENGTH_END = ':';
+	private static final char TAGS_END = '|';
+	private static final char REQUEST_ID = 'q';
+	private static final char IN_REPLY_TO = 'r';
+	private static final char PRIORITY = 'p';
+	private static final char COMPRESSION = 'z';
+	private static final char TO = 't';
+	private static final char VIA = 'v';
+	private static final long DEFLATE = 1;
+	private static final int RADIX = Character.MAX_RADIX;
+
+	/**
+	 * @return true if the string is a message in this envelope, of any version
+	 */
+	static boolean isEnvelope(String encoded) {
+		return encoded.length() > 2 && encoded.charAt(0) == MARKER;
+	}
+
+	/**
+	 * @return true if the string is an ack in this envelope. nothing but the header is read
+	 */
+	static boolean isAck(String encoded) {
+		return isEnvelope(encoded) && encoded.charAt(2) == ACK;
+	}
+
+	/**
+	 * The fields of an ack that the sender of the acked message needs
+	 */
+	static final class Ack {
+		final String from;
+		final long session;
+		final long seq;
+		final long receivedUpTo;
+
+		Ack(String from, long session, long seq, long receivedUpTo) {
+			this.from = from;
+			this.session = session;
+			this.seq = seq;
+			this.receivedUpTo = receivedUpTo;
+		}
+	}
+
+	/**
+	 * Reads an ack from its header alone, without decoding a message: the numbers are parsed in
+	 * place, and the tags are skipped over
+	 * @return the ack, or null if the string is not a valid ack envelope of a known version
+	 */
+	static Ack decodeAck(String encoded) {
+		if (!isAck(encoded) || encoded.charAt(1) != VERSION) {
+			return null;
+		}
+		try {
+			Reader reader = new Reader(encoded, 3);
+			long session = reader.number();
+			long seq = reader.number();
+			long receivedUpTo = reader.number();
+			while (reader.peek() != TAGS_END) {
+				reader.next();
+				reader.skip();
+			}
+			reader.next();
+			return new Ack(reader.string(), session, seq, receivedUpTo);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	static String encode(Message msg) {
+		return encode(msg, 0);
+	}
+
+	/**
+	 * @return the most characters the envelope adds to the content of a message from the address,
+	 * with no tags set, whatever its session, sequence number and acknowledgement
+	 */
+	static int maxHeaderLength(String from) {
+		return maxHeaderLength(from, null);
+	}
+
+	/**
+	 * @return the most characters the envelope adds to the content of a message from the address,
+	 * with no tags set but the via tag, if via is not null
+	 */
+	static int maxHeaderLength(String from, String via) {
+		// the marker, the version and the type, three numbers of up to 14 characters each with its end,
+		// the end of the tags, and the address with its length
+		int $ = 3 + 3 * 15 + 1 + Integer.toString(from.length(), RADIX).length() + 1 + from.length();
+		if (via != null) {
+			$ += 1 + Integer.toString(via.length(), RADIX).length() + 1 + via.length();
+		}
+		return $;
+	}
+
+	/**
+	 * @param compressionThreshold the content length from which the content is compressed,
+	 * if that makes it shorter; 0 to never compress
+	 */
+	static String encode(Message msg, int compressionThreshold) {
+		String from = msg.getFrom();
+		String content = msg.getContent() == null ? "" : msg.getContent();
+		long compression = 0;
+		if (compressionThreshold > 0 && content.length() >= compressionThreshold) {
+			String compressed = deflate(content);
+			if (compressed.length() < content.length()) {
+				content = compressed;
+				compression = DEFLATE;
+			}
+		}
+		StringBuilder $ = new StringBuilder(content.length() + from.length() + 48);
+		$.append(MARKER).append(VERSION).append(typeCode(msg.getMessageType()));
+		$.append(Long.toString(msg.getSession(), RADIX)).append(NUMBER_END);
+		$.append(Long.toString(msg.getSeq(), RADIX)).append(NUMBER_END);
+		$.append(Long.toString(msg.getAck(), RADIX)).append(NUMBER_END);
+		appendTag($, REQUEST_ID, msg.getRequestId());
+		appendTag($, IN_REPLY_TO, msg.getInReplyTo());
+		appendTag($, PRIORITY, msg.getPriority() == Priority.CONTROL ? 1 : 0);
+		appendTag($, COMPRESSION, compression);
+		appendTag($, TO, msg.getTo());
+		appendTag($, VIA, msg.getVia());
+		$.append(TAGS_END);
+		$.append(Integer.toString(from.length(), RADIX)).append(LENGTH_END).append(from);
+		$.append(content);
+		return $.toString();
+	}
+
+	/**
+	 * @return the decoded message, or null if the string is not a valid envelope of a known version
+	 */
+	static Message decode(String encoded) {
+		if (!isEnvelope(encoded) || encoded.charAt(1) != VERSION) {
+			return null;
+		}
+		try {
+			Reader reader = new Reader(encoded, 2);
+			MessageType type = type(reader.next());
+			long session = reader.number();
+			long seq = reader.number();
+			long ack = reader.number();
+			long requestId = 0;
+			long inReplyTo = 0;
+			Priority priority = Priority.BULK;
+			long compression = 0;
+			String to = null;
+			String via = null;
+			while (reader.peek() != TAGS_END) {
+				char tag = reader.next();
+				String value = reader.string();
+				if (tag == REQUEST_ID) {
+					requestId = Long.parseLong(value, RADIX);
+				} else if (tag == IN_REPLY_TO) {
+					inReplyTo = Long.parseLong(value, RADIX);
+				} else if (tag == PRIORITY) {
+					priority = "1".equals(value) ? Priority.CONTROL : Priority.BULK;
+				} else if (tag == COMPRESSION) {
+					compression = Long.parseLong(value, RADIX);
+				} else if (tag == TO) {
+					to = value;
+				} else if (tag == VIA) {
+					via = value;
+				}
+			}
+			reader.next();
+			String from = reader.string();
+			String content = reader.rest();
+			if (compression == DEFLATE) {
+				content = inflate(content);
+			} else if (compression != 0) {
+				throw new IllegalArgumentException("unknown compression " + compression);
+			}
+
+			Message $ = new Message(from, content, type);
+			$.setSession(session);
+			$.setSeq(seq);
+			$.setAck(ack);
+			$.setRequestId(requestId);
+			$.setInReplyTo(inReplyTo);
+			$.setPriority(priority);
+			$.setTo(to);
+			$.setVia(via);
+			return $;
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private static String deflate(String content) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(content.getBytes(StandardCharsets.UTF_8));
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(content.length() / 4 + 16);
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return Base64.getEncoder().encodeToString(out.toByteArray());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String inflate(String compressed) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(Base64.getDecoder().decode(compressed));
+			ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length() * 4);
+			byte[] buffer = new byte[4096];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("truncated compressed content");
+				}
+				out.write(buffer, 0, inflated);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("corrupt compressed content", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void appendTag(StringBuilder encoded, char tag, long value) {
+		if (value == 0) {
+			return;
+		}
+		String number = Long.toString(value, RADIX);
+		encoded.append(tag).append(Integer.toString(number.length(), RADIX)).append(LENGTH_END).append(number);
+	}
+
+	private static void appendTag(StringBuilder encoded, char tag, String value) {
+		if (value == null) {
+			return;
+		}
+		encoded.append(tag).append(Integer.toString(value.length(), RADIX)).append(LENGTH_END).append(value);
+	}
+
+	/**
+	 * @return the content of a batch: the encoded messages, each prefixed by its length
+	 */
+	static String pack(List<Message> messages) {
+		StringBuilder $ = new StringBuilder();
+		for (Message msg : messages) {
+			String encoded = encode(msg);
+			$.append(Integer.toString(encoded.length(), RADIX)).append(LENGTH_END).append(encoded);
+		}
+		return $.toString();
+	}
+
+	/**
+	 * @return the messages of a batch, in the order they were packed
+	 * @throws IllegalArgumentException if the content is not a valid batch
+	 */
+	static List<Message> unpack(String content) {
+		List<Message> $ = new ArrayList<>();
+		Reader reader = new Reader(content, 0);
+		try {
+			while (!reader.isAtEnd()) {
+				Message msg = decode(reader.string());
+				if (msg == null) {
+					throw new IllegalArgumentException("invalid message in batch");
+				}
+				$.add(msg);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated batch", e);
+		}
+		return $;
+	}
+
+	private static char typeCode(MessageType type) {
+		switch (type) {
+		case NEW_MESSAGE:
+			return NEW_MESSAGE;
+		case REPLIED_MESSAGE:
+			return REPLIED_MESSAGE;
+		case ACK:
+			return ACK;
+		case BATCH:
+			return BATCH;
+		case FRAGMENT:
+			return FRAGMENT;
+		default:
+			throw new IllegalArgumentException("unknown message type " + type);
+		}
+	}
+
+	private static MessageType type(char code) {
+		switch (code) {
+		case NEW_MESSAGE:
+			return MessageType.NEW_MESSAGE;
+		case REPLIED_MESSAGE:
+			return MessageType.REPLIED_MESSAGE;
+		case ACK:
+			return MessageType.ACK;
+		case BATCH:
+			return MessageType.BATCH;
+		case FRAGMENT:
+			return MessageType.FRAGMENT;
+		default:
+			throw new IllegalArgumentException("unknown message type " + code);
+		}
+	}
+
+	/**
+	 * Reads the fields of an envelope one after the other
+	 */
+	private static class Reader {
+		private final String encoded;
+		private int position;
+
+		Reader(String encoded, int position) {
+			this.encoded = encoded;
+			this.position = position;
+		}
+
+		char peek() {
+			return encoded.charAt(position);
+		}
+
+		char next() {
+			return encoded.charAt(position++);
+		}
+
+		/**
+		 * Parses the number up to NUMBER_END in place, without copying it out
+		 */
+		long number() {
+			int end = encoded.indexOf(NUMBER_END, position);
+			long $ = parse(position, end);
+			position = end + 1;
+			return $;
+		}
+
+		String string() {
+			int end = encoded.indexOf(LENGTH_END, position);
+			int length = (int)parse(position, end);
+			position = end + 1 + length;
+			return encoded.substring(end + 1, position);
+		}
+
+		/**
+		 * Moves past a length prefixed string without copying it out
+		 */
+		void skip() {
+			int end = encoded.indexOf(LENGTH_END, position);
+			int length = (int)parse(position, end);
+			if (length < 0 || end + 1 + length > encoded.length()) {
+				throw new IndexOutOfBoundsException();
+			}
+			position = end + 1 + length;
+		}
+
+		/**
+		 * @return the base 36 number between the positions. accumulated negated, so that
+		 * Long.MIN_VALUE, which the sessions may be, does not overflow
+		 */
+		private long parse(int begin, int end) {
+			if (end < 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			boolean isNegative = begin < end && encoded.charAt(begin) == '-';
+			int i = isNegative ? begin + 1 : begin;
+			if (i == end) {
+				throw new IllegalArgumentException("empty number");
+			}
+			long $ = 0;
+			for (; i < end; i++) {
+				int digit = Character.digit(encoded.charAt(i), RADIX);
+				if (digit < 0 || $ < (Long.MIN_VALUE + digit) / RADIX) {
+					throw new IllegalArgumentException("invalid number");
+				}
+				$ = $ * RADIX - digit;
+			}
+			if (!isNegative && $ == Long.MIN_VALUE) {
+				throw new IllegalArgumentException("invalid number");
+			}
+			return isNegative ? $ : -$;
+		}
+
+		boolean isAtEnd() {
+			return position >= encoded.length();
+		}
+
+		String rest() {
+			return encoded.substring(position);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Decorates the transports of another factory, usually a {@link LoopbackNetwork}, with the faults
+ * of a bad network: loss, latency, duplication and reordering, acks included.
+ * The faults are drawn from a random generator per pair of addresses, seeded from the seed of the
+ * network, so the same sequence of payloads between two addresses meets the same faults in every
+ * run. This allows comparing retransmission settings under the same conditions.
+ * Set the faults before starting transports; changing them later applies to later payloads.
+ * Compare with {@link ReliableMessenger#getRetransmissions()} and the goodput of
+ * {@link ReliableMessenger#getMessagesReceived()} to see how the messengers cope.
+ */
+public class FaultInjectingNetwork implements TransportFactory {
+	// delivers the delayed payloads of all networks. tasks due at the same time run in the order scheduled
+	private static final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "fault-injector");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * The distribution of the latency of a payload.
+	 */
+	@FunctionalInterface
+	public interface Latency {
+		/**
+		 * @return a latency, in microseconds
+		 */
+		long sample(Random random);
+
+		static Latency none() {
+			return random -> 0;
+		}
+
+		static Latency constant(long latencyInMs) {
+			return random -> latencyInMs * 1000;
+		}
+
+		static Latency uniform(long minInMs, long maxInMs) {
+			if (minInMs < 0 || maxInMs < minInMs) {
+				throw new IllegalArgumentException();
+			}
+			return random -> minInMs * 1000 + (long)(random.nextDouble() * (maxInMs - minInMs) * 1000);
+		}
+
+		/**
+		 * Mostly short latencies with a long tail, as on a congested link.
+		 */
+		static Latency exponential(long meanInMs) {
+			if (meanInMs < 0) {
+				throw new IllegalArgumentException();
+			}
+			return random -> (long)(-Math.log(1 - random.nextDouble()) * meanInMs * 1000);
+		}
+	}
+
+	private final TransportFactory inner;
+	private final long seed;
+	private final ConcurrentMap<String, Random> links = new ConcurrentHashMap<>();
+
+	private volatile double lossRate = 0;
+	private volatile double duplicationRate = 0;
+	private volatile double reorderRate = 0;
+	private volatile long reorderDelayInMs = 0;
+	private volatile Latency latency = Latency.none();
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong duplicated = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+
+	/**
+	 * @param inner starts the transports the faults are injected into
+	 * @param seed seeds the faults
+	 */
+	public FaultInjectingNetwork(TransportFactory inner, long seed) {
+		if (inner == null) {
+			throw new IllegalArgumentException();
+		}
+		this.inner = inner;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param rate the probability of a payload to be lost
+	 */
+	public void setLossRate(double rate) {
+		lossRate = checkRate(rate);
+	}
+
+	/**
+	 * @param rate the probability of a payload to be delivered twice
+	 */
+	public void setDuplicationRate(double rate) {
+		duplicationRate = checkRate(rate);
+	}
+
+	/**
+	 * @param rate the probability of a payload to be held back
+	 * @param delayInMs the time a held back payload is delayed by, on top of its latency,
+	 * letting the payloads sent after it overtake it
+	 */
+	public void setReordering(double rate, long delayInMs) {
+		if (delayInMs < 0) {
+			throw new IllegalArgumentException();
+		}
+		reorderRate = checkRate(rate);
+		reorderDelayInMs = delayInMs;
+	}
+
+	public void setLatency(Latency latency) {
+		if (latency == null) {
+			throw new IllegalArgumentException();
+		}
+		this.latency = latency;
+	}
+
+	private static double checkRate(double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException();
+		}
+		return rate;
+	}
+
+	@Override
+	public Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException {
+		Endpoint $ = new Endpoint();
+		// acks and replies are sent through the faulty endpoint too
+		Transport started = inner.start(address, (t, payload) -> {
+			if ($.inner == null) {
+				// received before start returned
+				$.inner = t;
+			}
+			onReceive.accept($, payload);
+		});
+		$.inner = started;
+		return $;
+	}
+
+	/**
+	 * @return the number of payloads sent, before any faults
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of payloads lost
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * @return the number of payloads delivered twice
+	 */
+	public long getDuplicated() {
+		return duplicated.get();
+	}
+
+	/**
+	 * @return the number of deliveries held back
+	 */
+	public long getReordered() {
+		return reordered.get();
+	}
+
+	private class Endpoint implements Transport {
+		volatile Transport inner;
+
+		@Override
+		public String getAddress() {
+			return inner.getAddress();
+		}
+
+		@Override
+		public void send(String to, String payload) throws MessengerException {
+			sent.incrementAndGet();
+			Random random = links.computeIfAbsent(getAddress() + "->" + to,
+					link -> new Random(seed ^ link.hashCode()));
+			int copies;
+			long[] delays;
+			synchronized (random) {
+				if (random.nextDouble() < lossRate) {
+					lost.incrementAndGet();
+					return;
+				}
+				copies = random.nextDouble() < duplicationRate ? 2 : 1;
+				delays = new long[copies];
+				for (int i = 0; i < copies; i++) {
+					delays[i] = latency.sample(random);
+					if (random.nextDouble() < reorderRate) {
+						delays[i] += reorderDelayInMs * 1000;
+						reordered.incrementAndGet();
+					}
+				}
+			}
+			if (copies > 1) {
+				duplicated.incrementAndGet();
+			}
+			for (long delay : delays) {
+				if (delay == 0) {
+					inner.send(to, payload);
+				} else {
+					delayer.schedule(() -> sendLater(to, payload), delay, TimeUnit.MICROSECONDS);
+				}
+			}
+		}
+
+		private void sendLater(String to, String payload) {
+			try {
+				inner.send(to, payload);
+			} catch (MessengerException e) {
+				// the sender was killed meanwhile, so the payload is lost
+			}
+		}
+
+		@Override
+		public void kill() throws MessengerException {
+			inner.kill();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences, for memory shared with other processes, where the accesses cannot be ordered by
+ * volatile fields or locks. They are VarHandle.acquireFence and releaseFence (Java 9 or later, so
+ * also under -Pjdk21) where the JVM has them, or else sun.misc.Unsafe.loadFence and storeFence
+ * (Java 8). Both are looked up reflectively, so the libraries still build and run on Java 8.
+ */
+final class Fences {
+	// take no arguments and return nothing; null if the JVM has neither
+	private static final MethodHandle acquire;
+	private static final MethodHandle release;
+
+	static {
+		MethodHandle[] fences;
+		try {
+			fences = varHandleFences();
+		} catch (ReflectiveOperationException e) {
+			try {
+				fences = unsafeFences();
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				fences = new MethodHandle[2];
+			}
+		}
+		acquire = fences[0];
+		release = fences[1];
+	}
+
+	private Fences() {
+	}
+
+	private static MethodHandle[] varHandleFences() throws ReflectiveOperationException {
+		Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+		MethodType type = MethodType.methodType(void.class);
+		return new MethodHandle[] { MethodHandles.publicLookup().findStatic(varHandle, "acquireFence", type),
+				MethodHandles.publicLookup().findStatic(varHandle, "releaseFence", type) };
+	}
+
+	private static MethodHandle[] unsafeFences() throws ReflectiveOperationException {
+		Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+		Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+		theUnsafe.setAccessible(true);
+		Object unsafe = theUnsafe.get(null);
+		return new MethodHandle[] { MethodHandles.lookup().unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe),
+				MethodHandles.lookup().unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe) };
+	}
+
+	/**
+	 * @return true if the JVM has fences
+	 */
+	static boolean isSupported() {
+		return acquire != null;
+	}
+
+	/**
+	 * Keeps the loads before it from being reordered with the loads and stores after it
+	 */
+	static void acquire() {
+		invoke(acquire);
+	}
+
+	/**
+	 * Keeps the loads and stores before it from being reordered with the stores after it
+	 */
+	static void release() {
+		invoke(release);
+	}
+
+	private static void invoke(MethodHandle fence) {
+		try {
+			fence.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Transports within a single JVM, for benchmarks and tests: a payload is handed to the receiver
+ * as is, without copying or loss, and the payloads between two addresses arrive in order.
+ * Each endpoint receives on its own daemon thread, as the messaging artifact does, so a receiver
+ * that sends back never runs inside its sender.
+ * Addresses are unique per network; separate networks do not see each other.
+ */
+public class LoopbackNetwork implements TransportFactory {
+	private static final LoopbackNetwork shared = new LoopbackNetwork();
+	// wakes a receiver up to notice it was killed. compared by identity
+	private static final String poison = new String();
+
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+	private final AtomicLong delivered = new AtomicLong();
+
+	/**
+	 * @return the network shared by the whole JVM
+	 */
+	public static LoopbackNetwork shared() {
+		return shared;
+	}
+
+	@Override
+	public Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException {
+		if (address == null || onReceive == null) {
+			throw new IllegalArgumentException();
+		}
+		Endpoint $ = new Endpoint(address, onReceive);
+		if (endpoints.putIfAbsent(address, $) != null) {
+			throw new MessengerException("address " + address + " is taken");
+		}
+		VirtualThreads.start("loopback-" + address, $.receive, VirtualThreads.isRequested());
+		return $;
+	}
+
+	/**
+	 * @return the number of payloads handed to receivers so far
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	private class Endpoint implements Transport {
+		private final String address;
+		private final BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+		// run by the receiving thread of the endpoint
+		private final Runnable receive;
+		private volatile boolean killed = false;
+
+		Endpoint(String address, BiConsumer<Transport, String> onReceive) {
+			this.address = address;
+			receive = () -> {
+				try {
+					while (!killed) {
+						String payload = inbox.take();
+						if (payload != poison && !killed) {
+							onReceive.accept(this, payload);
+							delivered.incrementAndGet();
+						}
+					}
+				} catch (InterruptedException e) {
+					// stop receiving
+				}
+			};
+		}
+
+		@Override
+		public String getAddress() {
+			return address;
+		}
+
+		@Override
+		public void send(String to, String payload) throws MessengerException {
+			if (to == null || payload == null) {
+				throw new IllegalArgumentException();
+			}
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was killed");
+			}
+			Endpoint destination = endpoints.get(to);
+			if (destination != null) {
+				destination.inbox.add(payload);
+			}
+		}
+
+		@Override
+		public void kill() throws MessengerException {
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was already killed");
+			}
+			killed = true;
+			endpoints.remove(address, this);
+			// not interrupted, as it may be in the middle of the action of a message
+			inbox.add(poison);
+		}
+	}
+}
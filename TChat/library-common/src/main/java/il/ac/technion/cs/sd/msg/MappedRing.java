@@ -0,0 +1,208 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer single-consumer ring of payloads in a memory-mapped file, shared by a writer
+ * and a reader that may be in different processes.
+ * The file starts with a header: the position up to which the reader read, a flag the reader sets
+ * when it stops reading, and the position up to which the writer wrote, each on a cache line of
+ * its own. Positions only grow; their remainder by the capacity is the offset in the data.
+ * A record is its length in bytes followed by its UTF-8 bytes, padded to 4 bytes. A record that
+ * does not fit before the end of the data is preceded by a wrap marker and written at its start.
+ * A record is published by moving the write position past it after it was written, and freed by
+ * moving the read position past it after it was read. {@link Fences} keep the order of these
+ * accesses across processes: a release fence before a position is moved, and an acquire fence
+ * after the position of the other side is read. Positions are aligned longs, which the platforms
+ * the JVM runs on read and write whole.
+ */
+class MappedRing {
+	private static final int READ_POSITION = 0;
+	private static final int CLOSED = 8;
+	private static final int WRITE_POSITION = 64;
+	static final int HEADER_SIZE = 128;
+	private static final int WRAP = -1;
+	private static final int ALIGNMENT = 4;
+
+	private final MappedByteBuffer mapped;
+	// positioned by its single user: the writer in the writing process, the reader in the reading one
+	private final ByteBuffer data;
+	private final int capacity;
+
+	private MappedRing(MappedByteBuffer mapped) {
+		this.mapped = mapped;
+		capacity = mapped.capacity() - HEADER_SIZE;
+		mapped.position(HEADER_SIZE);
+		data = mapped.slice();
+	}
+
+	/**
+	 * Maps an existing ring, or creates a ring of the given capacity.
+	 * @param capacity the size of the data, a multiple of 4. ignored if the file exists
+	 */
+	static MappedRing map(Path file, int capacity) throws IOException {
+		if (capacity < ALIGNMENT || capacity % ALIGNMENT != 0) {
+			throw new IllegalArgumentException();
+		}
+		if (!Fences.isSupported()) {
+			throw new UnsupportedOperationException("memory fences are not supported by this JVM");
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long size = channel.size() >= HEADER_SIZE + ALIGNMENT ? channel.size() : HEADER_SIZE + capacity;
+			// the mapping stays valid after the channel is closed
+			return new MappedRing(channel.map(MapMode.READ_WRITE, 0, size));
+		}
+	}
+
+	/**
+	 * @return the longest payload, in UTF-8 bytes, that fits in the ring
+	 */
+	int getMaxPayloadSize() {
+		return capacity - ALIGNMENT;
+	}
+
+	boolean isClosed() {
+		boolean $ = mapped.getInt(CLOSED) != 0;
+		Fences.acquire();
+		return $;
+	}
+
+	/**
+	 * Tells the writer that the reader stopped reading.
+	 */
+	void close() {
+		// after the reads of the reader
+		Fences.release();
+		mapped.putInt(CLOSED, 1);
+	}
+
+	/**
+	 * Writes the payload, if there is room for it. Does not wait: the caller waits for room,
+	 * so it can let go of what it holds meanwhile.
+	 * Must not be called by more than one thread at a time.
+	 * @return false if the payload does not fit in the ring, there is no room for it now, or the
+	 * reader closed the ring
+	 */
+	boolean write(byte[] payload) {
+		int recordSize = align(ALIGNMENT + payload.length);
+		if (recordSize > capacity) {
+			return false;
+		}
+		long tail = mapped.getLong(WRITE_POSITION);
+		int offset = (int)(tail % capacity);
+		// the space skipped by a wrap marker, if the record does not fit before the end
+		int skipped = capacity - offset < recordSize ? capacity - offset : 0;
+		boolean closed = mapped.getInt(CLOSED) != 0;
+		long head = mapped.getLong(READ_POSITION);
+		// the record is not written before the reader is seen to be done with its space
+		Fences.acquire();
+		if (closed || tail + skipped + recordSize - head > capacity) {
+			return false;
+		}
+		if (skipped > 0) {
+			data.putInt(offset, WRAP);
+			offset = 0;
+		}
+		data.putInt(offset, payload.length);
+		data.position(offset + ALIGNMENT);
+		data.put(payload);
+		// the record is written before it is published
+		Fences.release();
+		mapped.putLong(WRITE_POSITION, tail + skipped + recordSize);
+		return true;
+	}
+
+	/**
+	 * Reads the next payload, if one was written. Must not be called by more than one thread at a time.
+	 * @return the payload, or null if the ring is empty
+	 */
+	String read() {
+		long head = mapped.getLong(READ_POSITION);
+		long tail = mapped.getLong(WRITE_POSITION);
+		// the record is not read before it is seen to be published
+		Fences.acquire();
+		if (head == tail) {
+			return null;
+		}
+		int offset = (int)(head % capacity);
+		int length = data.getInt(offset);
+		if (length == WRAP) {
+			head += capacity - offset;
+			offset = 0;
+			length = data.getInt(0);
+		}
+		byte[] bytes = new byte[length];
+		data.position(offset + ALIGNMENT);
+		data.get(bytes);
+		// the record is read before its space is freed
+		Fences.release();
+		mapped.putLong(READ_POSITION, head + align(ALIGNMENT + length));
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int align(int size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * Waits for the other side of a ring without a system call for as long as it is likely to
+	 * answer soon: spins first, then yields, then parks for growing periods.
+	 */
+	static class Backoff {
+		private static final int SPINS = 1000;
+		private static final int YIELDS = 100;
+		private static final long MIN_PARK_IN_NANOS = 10_000;
+		private static final long MAX_PARK_IN_NANOS = 1_000_000;
+
+		private final boolean bounded;
+		private final long deadline;
+		private int tries = 0;
+		private long parkInNanos = MIN_PARK_IN_NANOS;
+
+		/**
+		 * @param maxWaitInNanos the time after which {@link #idle()} gives up; Long.MAX_VALUE for never
+		 */
+		Backoff(long maxWaitInNanos) {
+			bounded = maxWaitInNanos != Long.MAX_VALUE;
+			deadline = System.nanoTime() + (bounded ? maxWaitInNanos : 0);
+		}
+
+		/**
+		 * Waits a little.
+		 * @return false if the time to wait is up
+		 */
+		boolean idle() {
+			tries++;
+			if (tries <= SPINS) {
+				return true;
+			}
+			if (bounded && System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			if (tries <= SPINS + YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(parkInNanos);
+				parkInNanos = Math.min(MAX_PARK_IN_NANOS, parkInNanos * 2);
+			}
+			return true;
+		}
+
+		/**
+		 * Starts over with spinning, as the other side answered.
+		 */
+		void reset() {
+			tries = 0;
+			parkInNanos = MIN_PARK_IN_NANOS;
+		}
+	}
+}
@@ -1,18 +1,57 @@
 package il.ac.technion.cs.sd.msg;
 
 import java.io.IOException;
+import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 import org.codehaus.jackson.map.ObjectWriter;
 
 public class Message {
 	
+	// readers and writers are immutable and thread safe, so a single pair serves all messages.
+	// fields added by newer peers are ignored, so peers of different versions can talk
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private static final ObjectWriter writer = mapper.writer();
+	private static final ObjectReader reader = mapper.reader(Message.class);
+	
 	private String from;
 	private String content;
 	private MessageType messageType;
+	// position of the message in the stream of its sender to its destination; 0 when not sequenced.
+	// in an ack, the sequence number of the acknowledged message
+	private long seq;
+	// identifies the incarnation of the sending messenger, so a restarted peer starts a new stream.
+	// in an ack, the session of the acknowledged message
+	private long session;
+	// every message of the stream up to this sequence number is known to be received
+	private long ack;
+	// set when the sender awaits a reply, which carries it back in inReplyTo; 0 otherwise
+	private long requestId;
+	// the requestId of the message this one replies to; 0 when unknown
+	private long inReplyTo;
+	// control messages are handled ahead of the bulk ones of other senders by receivers that queue messages
+	private Priority priority = Priority.BULK;
+	// the identity the message is for, when its destination address hosts many identities; null otherwise
+	private String to;
+	// the address the message was sent from, when it differs from the identity in from; null otherwise
+	private String via;
 	
 	public enum MessageType{
 		NEW_MESSAGE,
 		REPLIED_MESSAGE,
+		ACK,
+		// several messages sent as one, see EnvelopeCodec.pack
+		BATCH,
+		// a slice of a message too long to send whole, see Reassembler
+		FRAGMENT,
+	}
+	
+	public enum Priority{
+		// connection management and other messages someone is waiting on
+		CONTROL,
+		// everything else, such as chat fan-out
+		BULK,
 	}
 	
 	public Message(String from, String content, MessageType type) {
@@ -25,6 +64,20 @@ public class Message {
 	public Message() {
 		super();
 	}
+	
+	/**
+	 * Creates an ack for a received message
+	 * @param from the address of the acknowledging side
+	 * @param acked the acknowledged message
+	 * @param receivedUpTo every message of the stream up to this sequence number was received
+	 */
+	static Message ack(String from, Message acked, long receivedUpTo) {
+		Message $ = new Message(from, "", MessageType.ACK);
+		$.seq = acked.seq;
+		$.session = acked.session;
+		$.ack = receivedUpTo;
+		return $;
+	}
 
 	public String getFrom() {
 		return from;
@@ -74,11 +127,106 @@ public class Message {
 		return messageType;
 	}
 	
+	public long getSeq() {
+		return seq;
+	}
+	
+	void setSeq(long seq) {
+		this.seq = seq;
+	}
+	
+	public long getSession() {
+		return session;
+	}
+	
+	void setSession(long session) {
+		this.session = session;
+	}
+	
+	public long getAck() {
+		return ack;
+	}
+	
+	void setAck(long ack) {
+		this.ack = ack;
+	}
+	
+	public long getRequestId() {
+		return requestId;
+	}
+	
+	void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
+	
+	public long getInReplyTo() {
+		return inReplyTo;
+	}
+	
+	void setInReplyTo(long inReplyTo) {
+		this.inReplyTo = inReplyTo;
+	}
+	
+	public String getTo() {
+		return to;
+	}
+	
+	void setTo(String to) {
+		this.to = to;
+	}
+	
+	public String getVia() {
+		return via;
+	}
+	
+	void setVia(String via) {
+		this.via = via;
+	}
+	
+	/**
+	 * @return the address of the messenger that sent the message, which acks and sequence
+	 * numbers are exchanged with
+	 */
+	String peer() {
+		return via != null ? via : from;
+	}
+	
+	public Priority getPriority() {
+		return priority;
+	}
+	
+	void setPriority(Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException();
+		}
+		this.priority = priority;
+	}
+	
+	/**
+	 * @return the message in the compact envelope of {@link EnvelopeCodec}
+	 */
+	public String encode() {
+		return EnvelopeCodec.encode(this);
+	}
+	
+	/**
+	 * @param encoded a message as encoded by {@link #encode()}, or as json by older versions
+	 * @return the message, or null if it cannot be decoded
+	 */
+	public static Message decode(String encoded) {
+		if (EnvelopeCodec.isEnvelope(encoded)) {
+			return EnvelopeCodec.decode(encoded);
+		}
+		return FromJsonString(encoded);
+	}
+	
+	/**
+	 * @return the message as compact json, with no whitespace between the tokens
+	 */
 	public String ToJsonString(){
-		ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
 		String jsonMessage = "";
 		try {
-			jsonMessage = ow.writeValueAsString(this);
+			jsonMessage = writer.writeValueAsString(this);
 		} catch (IOException e1) {
 			// TODO Auto-generated catch block
 			//e1.printStackTrace();
@@ -87,11 +235,14 @@ public class Message {
 		return jsonMessage;
 	}
 	
+	/**
+	 * @param json a message as json, either compact or pretty printed as by older versions
+	 * @return the message
+	 */
 	public static Message FromJsonString(String json){
-		ObjectMapper mapper = new ObjectMapper();
 		Message reply = null;
 		try {
-			reply = mapper.readValue(json, Message.class);
+			reply = reader.readValue(json);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			//e.printStackTrace();
@@ -0,0 +1,209 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the actions on received messages for a {@link ReliableMessenger}.
+ * Actions of the same sender run one at a time, in the order they were dispatched;
+ * actions of different senders may run in parallel on the underlying executor.
+ */
+public class MessageDispatcher {
+	// the number of actions of a sender to run before letting other senders use the thread
+	private static final int maxActionsPerTurn = 16;
+
+	private final Executor executor;
+	private final Runnable onShutdown;
+
+	// the actions waiting to run, by sender. a sender is in the map while it has actions to run
+	private final Map<String, Queue<Runnable>> pending = new HashMap<>();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong dispatchedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private MessageDispatcher(Executor executor, Runnable onShutdown) {
+		this.executor = executor;
+		this.onShutdown = onShutdown;
+	}
+
+	/**
+	 * @param threads the number of threads
+	 * @return a dispatcher that runs the actions on a fixed number of daemon threads
+	 */
+	public static MessageDispatcher boundedPool(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads, daemonThreads("dispatcher"));
+		return new MessageDispatcher(pool, pool::shutdown);
+	}
+
+	/**
+	 * Requires a JVM with virtual threads (Java 21 or later).
+	 * @return a dispatcher that runs every turn of a sender on a new virtual thread
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static MessageDispatcher virtualThreads() {
+		ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+		return new MessageDispatcher(executor, executor::shutdown);
+	}
+
+	/**
+	 * The actions run on the thread that received the message, which also receives acks.
+	 * An action must therefore not wait for a send of the same messenger to be acknowledged.
+	 * @return a dispatcher that runs the actions on the receiving thread
+	 */
+	public static MessageDispatcher callerRuns() {
+		return new MessageDispatcher(Runnable::run, () -> {});
+	}
+
+	/**
+	 * @return the default dispatcher: a pool with a thread per available processor, or virtual threads
+	 * if they were asked for, see {@link VirtualThreads}
+	 */
+	static MessageDispatcher createDefault() {
+		if (VirtualThreads.isRequested()) {
+			return virtualThreads();
+		}
+		return boundedPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Runs the action after every action of the same sender that was dispatched before it.
+	 * @param sender the sender of the message the action handles
+	 * @param action the action to run
+	 */
+	void dispatch(String sender, Runnable action) {
+		boolean isIdle;
+		synchronized (pending) {
+			Queue<Runnable> actions = pending.get(sender);
+			isIdle = actions == null;
+			if (isIdle) {
+				actions = new ArrayDeque<>();
+				pending.put(sender, actions);
+			}
+			actions.add(action);
+		}
+		queueDepth.incrementAndGet();
+		if (isIdle) {
+			schedule(sender);
+		}
+	}
+
+	/**
+	 * Schedules a turn of the sender on the executor. Once the executor was shut down, the actions
+	 * of the sender are dropped instead, so a message arriving late does not fail the receiving thread
+	 */
+	private void schedule(String sender) {
+		try {
+			executor.execute(() -> runTurn(sender));
+		} catch (RejectedExecutionException e) {
+			Queue<Runnable> dropped;
+			synchronized (pending) {
+				dropped = pending.remove(sender);
+			}
+			if (dropped != null) {
+				queueDepth.addAndGet(-dropped.size());
+				droppedCount.addAndGet(dropped.size());
+			}
+		}
+	}
+
+	/**
+	 * Runs some of the waiting actions of the sender, then schedules another turn if any are left.
+	 */
+	private void runTurn(String sender) {
+		for (int i = 0; i < maxActionsPerTurn; i++) {
+			Runnable action;
+			synchronized (pending) {
+				Queue<Runnable> actions = pending.get(sender);
+				action = actions.poll();
+				if (action == null) {
+					pending.remove(sender);
+					return;
+				}
+			}
+			queueDepth.decrementAndGet();
+			try {
+				action.run();
+			} catch (RuntimeException e) {
+				// an action that failed must not stop the actions after it
+			}
+			dispatchedCount.incrementAndGet();
+		}
+		synchronized (pending) {
+			if (pending.get(sender).isEmpty()) {
+				pending.remove(sender);
+				return;
+			}
+		}
+		schedule(sender);
+	}
+
+	/**
+	 * @return the number of actions waiting to run, of all senders
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @param sender the address of a sender
+	 * @return the number of actions of the sender waiting to run
+	 */
+	public int getQueueDepth(String sender) {
+		synchronized (pending) {
+			Queue<Runnable> actions = pending.get(sender);
+			return actions == null ? 0 : actions.size();
+		}
+	}
+
+	/**
+	 * @return the number of senders that have actions waiting or running
+	 */
+	public int getActiveSenders() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return the number of actions that finished running
+	 */
+	public long getDispatchedCount() {
+		return dispatchedCount.get();
+	}
+
+	/**
+	 * @return the number of actions dropped, without running, as they were dispatched after shutdown
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Stops the threads of the dispatcher once the actions dispatched so far finish.
+	 * Actions that are not scheduled by then are dropped.
+	 */
+	void shutdown() {
+		onShutdown.run();
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,34 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Transport} over a {@link Messenger} of the messaging artifact.
+ */
+class MessengerTransport implements Transport {
+	private final Messenger messenger;
+
+	private MessengerTransport(Messenger messenger) {
+		this.messenger = messenger;
+	}
+
+	static Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException {
+		return new MessengerTransport(new MessengerFactory().start(address, 
+				(m, payload) -> onReceive.accept(new MessengerTransport(m), payload)));
+	}
+
+	@Override
+	public String getAddress() {
+		return messenger.getAddress();
+	}
+
+	@Override
+	public void send(String to, String payload) throws MessengerException {
+		messenger.send(to, payload);
+	}
+
+	@Override
+	public void kill() throws MessengerException {
+		messenger.kill();
+	}
+}
@@ -0,0 +1,557 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Transports over TCP, with non-blocking sockets served by a small fixed set of selector threads.
+ * Every transport listens on a port of its own. A payload is sent as a frame of its length in bytes
+ * followed by its UTF-8 bytes, on a connection opened by the sender on its first payload to the
+ * destination; acks and replies go on the connection opened the other way.
+ * A connection copies its queued payloads into a pooled direct buffer, as many frames per write as
+ * fit, so a small payload costs no buffer of its own; the buffer is held only while there are frames
+ * to write, and a frame larger than it is written in parts. Frames are read into pooled direct
+ * buffers; frames too large for a pooled buffer are read into a buffer of their own.
+ * Addresses are resolved by a directory: transports started by this network register themselves,
+ * and transports in other processes are added with {@link #register(String, InetSocketAddress)}.
+ * A payload to an address that is not in the directory, or that cannot be connected to, is lost.
+ */
+public class NioNetwork implements TransportFactory {
+	public static final int DEFAULT_SELECTOR_THREADS = 2;
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 256;
+	// a longer frame means the connection is out of sync, or not one of ours
+	private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+	private static final int HEADER_SIZE = 4;
+	// wakes a receiver up to notice it was killed. compared by identity
+	private static final String poison = new String();
+
+	private final InetAddress bindAddress;
+	private final ConcurrentMap<String, InetSocketAddress> directory = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+	private volatile boolean isShutdown = false;
+
+	/**
+	 * Creates a network on the loopback interface, for tests and benchmarks on a single machine.
+	 */
+	public NioNetwork() {
+		this(InetAddress.getLoopbackAddress(), DEFAULT_SELECTOR_THREADS);
+	}
+
+	/**
+	 * @param bindAddress the local interface the transports listen on
+	 * @param selectorThreads the number of threads serving all the sockets of the network
+	 */
+	public NioNetwork(InetAddress bindAddress, int selectorThreads) {
+		if (bindAddress == null || selectorThreads < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.bindAddress = bindAddress;
+		loops = new SelectorLoop[selectorThreads];
+		try {
+			for (int i = 0; i < selectorThreads; i++) {
+				loops[i] = new SelectorLoop(i);
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw new RuntimeException("Failed to open selectors", e);
+		}
+		for (SelectorLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Adds a transport of another process to the directory.
+	 * @param address the address of the transport
+	 * @param socketAddress where it listens
+	 */
+	public void register(String address, InetSocketAddress socketAddress) {
+		if (address == null || socketAddress == null) {
+			throw new IllegalArgumentException();
+		}
+		directory.put(address, socketAddress);
+	}
+
+	/**
+	 * @return where the transport of the address listens, or null if it is not in the directory
+	 */
+	public InetSocketAddress getSocketAddress(String address) {
+		return directory.get(address);
+	}
+
+	@Override
+	public Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException {
+		if (address == null || onReceive == null) {
+			throw new IllegalArgumentException();
+		}
+		if (isShutdown) {
+			throw new MessengerException("the network was shut down");
+		}
+		if (endpoints.containsKey(address)) {
+			throw new MessengerException("address " + address + " is taken");
+		}
+		ServerSocketChannel server;
+		try {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(bindAddress, 0));
+			server.configureBlocking(false);
+		} catch (IOException e) {
+			throw new MessengerException("cannot listen for " + address + ": " + e.getMessage());
+		}
+		Endpoint $ = new Endpoint(address, server, onReceive);
+		if (endpoints.putIfAbsent(address, $) != null) {
+			closeQuietly(server);
+			throw new MessengerException("address " + address + " is taken");
+		}
+		try {
+			directory.put(address, (InetSocketAddress)server.getLocalAddress());
+		} catch (IOException e) {
+			endpoints.remove(address, $);
+			closeQuietly(server);
+			throw new MessengerException("cannot listen for " + address + ": " + e.getMessage());
+		}
+		VirtualThreads.start("nio-" + address, $.receive, VirtualThreads.isRequested());
+		nextLoop().register(server, SelectionKey.OP_ACCEPT, $.new Acceptor());
+		return $;
+	}
+
+	/**
+	 * Kills the transports of the network and stops its selector threads.
+	 */
+	public void shutdown() {
+		isShutdown = true;
+		for (Endpoint endpoint : endpoints.values()) {
+			try {
+				endpoint.kill();
+			} catch (MessengerException e) {
+				// killed meanwhile
+			}
+		}
+		for (SelectorLoop loop : loops) {
+			if (loop != null) {
+				loop.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of free buffers kept for reuse
+	 */
+	int getPooledBuffers() {
+		return buffers.getPooled();
+	}
+
+	/**
+	 * @return the number of pooled buffers allocated, free or not
+	 */
+	int getAllocatedBuffers() {
+		return buffers.getAllocated();
+	}
+
+	private SelectorLoop nextLoop() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more to do with it
+		}
+	}
+
+	/**
+	 * Handles the readiness of a channel, on its selector thread.
+	 */
+	private interface Handler {
+		void ready(SelectionKey key) throws IOException;
+
+		void close();
+	}
+
+	private class SelectorLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		// run on the selector thread, which alone may change the registrations of its selector
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		volatile boolean closed = false;
+
+		SelectorLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "nio-selector-" + index);
+			thread.setDaemon(true);
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(SelectableChannel channel, int ops, Handler handler) {
+			execute(() -> {
+				try {
+					channel.register(selector, ops, handler);
+				} catch (IOException e) {
+					handler.close();
+				}
+			});
+		}
+
+		void close() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					break;
+				}
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+					task.run();
+				}
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					Handler handler = (Handler)key.attachment();
+					try {
+						if (key.isValid()) {
+							handler.ready(key);
+						}
+					} catch (IOException e) {
+						handler.close();
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key.channel());
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// the thread ends anyway
+			}
+		}
+	}
+
+	private class Endpoint implements Transport {
+		final String address;
+		final ServerSocketChannel server;
+		final BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+		// run by the receiving thread of the endpoint
+		final Runnable receive;
+		// the connections this transport opened, by destination
+		final ConcurrentMap<String, Outbound> outbound = new ConcurrentHashMap<>();
+		final Set<Inbound> inbound = ConcurrentHashMap.newKeySet();
+		volatile boolean killed = false;
+
+		Endpoint(String address, ServerSocketChannel server, BiConsumer<Transport, String> onReceive) {
+			this.address = address;
+			this.server = server;
+			receive = () -> {
+				try {
+					while (!killed) {
+						String payload = inbox.take();
+						if (payload != poison && !killed) {
+							onReceive.accept(this, payload);
+						}
+					}
+				} catch (InterruptedException e) {
+					// stop receiving
+				}
+			};
+		}
+
+		@Override
+		public String getAddress() {
+			return address;
+		}
+
+		@Override
+		public void send(String to, String payload) throws MessengerException {
+			if (to == null || payload == null) {
+				throw new IllegalArgumentException();
+			}
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was killed");
+			}
+			InetSocketAddress destination = directory.get(to);
+			if (destination == null) {
+				return;
+			}
+			Outbound connection = outbound.computeIfAbsent(to, dest -> new Outbound(this, dest, destination));
+			connection.enqueue(payload.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void kill() throws MessengerException {
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was already killed");
+			}
+			killed = true;
+			endpoints.remove(address, this);
+			try {
+				directory.remove(address, server.getLocalAddress());
+			} catch (IOException e) {
+				// the server socket is closed already
+			}
+			closeQuietly(server);
+			for (Outbound connection : outbound.values()) {
+				connection.close();
+			}
+			for (Inbound connection : inbound) {
+				connection.close();
+			}
+			// not interrupted, as it may be in the middle of the action of a message
+			inbox.add(poison);
+		}
+
+		class Acceptor implements Handler {
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				SocketChannel channel = server.accept();
+				if (channel == null) {
+					return;
+				}
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Inbound connection = new Inbound(Endpoint.this, channel);
+				inbound.add(connection);
+				if (killed) {
+					connection.close();
+					return;
+				}
+				connection.loop.register(channel, SelectionKey.OP_READ, connection);
+			}
+
+			@Override
+			public void close() {
+				closeQuietly(server);
+			}
+		}
+	}
+
+	/**
+	 * A connection a transport opened to send to a destination.
+	 */
+	private class Outbound implements Handler {
+		final Endpoint endpoint;
+		final String destination;
+		final InetSocketAddress socketAddress;
+		final SelectorLoop loop = nextLoop();
+		// the payloads to frame and write, in their UTF-8 bytes
+		final Queue<byte[]> payloads = new ConcurrentLinkedQueue<>();
+		// set while the selector thread is asked to write the queued frames
+		final AtomicBoolean writeScheduled = new AtomicBoolean();
+		volatile boolean closed = false;
+		// used on the selector thread only
+		SocketChannel channel;
+		SelectionKey key;
+		// the frames copied and not written yet, ready to be read; null when there is nothing to write
+		ByteBuffer out;
+		// the payload whose frame is partly copied, and how much of it was
+		byte[] current;
+		int copied;
+
+		Outbound(Endpoint endpoint, String destination, InetSocketAddress socketAddress) {
+			this.endpoint = endpoint;
+			this.destination = destination;
+			this.socketAddress = socketAddress;
+		}
+
+		void enqueue(byte[] payload) {
+			payloads.add(payload);
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.execute(this::startWriting);
+			}
+		}
+
+		private void startWriting() {
+			if (closed) {
+				return;
+			}
+			try {
+				if (channel == null) {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					boolean connected = channel.connect(socketAddress);
+					key = channel.register(loop.selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+				} else if (channel.isConnected()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		@Override
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isConnectable()) {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (out == null) {
+				out = buffers.acquire();
+				out.flip();
+			}
+			while (true) {
+				out.compact();
+				copyFrames();
+				out.flip();
+				if (!out.hasRemaining()) {
+					break;
+				}
+				channel.write(out);
+				if (out.hasRemaining()) {
+					// the socket is full; the rest is written when it drains
+					return;
+				}
+			}
+			buffers.release(out);
+			out = null;
+			key.interestOps(0);
+			writeScheduled.set(false);
+			// a frame queued after the loop above ended, but before writeScheduled was reset
+			if (!payloads.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Copies as much of the queued frames into the buffer as fits
+		 */
+		private void copyFrames() {
+			while (out.hasRemaining()) {
+				if (current == null) {
+					// the header is copied whole, after the buffer is written if it has no room
+					if (out.remaining() < HEADER_SIZE || (current = payloads.poll()) == null) {
+						return;
+					}
+					out.putInt(current.length);
+					copied = 0;
+				}
+				int length = Math.min(out.remaining(), current.length - copied);
+				out.put(current, copied, length);
+				copied += length;
+				if (copied == current.length) {
+					current = null;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			// the next payload to the destination opens a new connection
+			endpoint.outbound.remove(destination, this);
+			loop.execute(() -> {
+				if (channel != null) {
+					closeQuietly(channel);
+				}
+				// the queued frames are lost
+				payloads.clear();
+				current = null;
+				if (out != null) {
+					buffers.release(out);
+					out = null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * A connection a transport accepted, to receive on.
+	 */
+	private class Inbound implements Handler {
+		final Endpoint endpoint;
+		final SocketChannel channel;
+		final SelectorLoop loop = nextLoop();
+		// used on the selector thread only; null once closed
+		ByteBuffer in = buffers.acquire();
+
+		Inbound(Endpoint endpoint, SocketChannel channel) {
+			this.endpoint = endpoint;
+			this.channel = channel;
+		}
+
+		@Override
+		public void ready(SelectionKey key) throws IOException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			in.flip();
+			while (in.remaining() >= HEADER_SIZE) {
+				int length = in.getInt(in.position());
+				if (length < 0 || length > MAX_FRAME_SIZE) {
+					throw new IOException("bad frame length " + length);
+				}
+				if (in.remaining() < HEADER_SIZE + length) {
+					break;
+				}
+				in.getInt();
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				endpoint.inbox.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			if (in.remaining() >= HEADER_SIZE && HEADER_SIZE + in.getInt(in.position()) > in.capacity()) {
+				// a frame too large for the buffer: read it into one of its own
+				ByteBuffer large = ByteBuffer.allocate(HEADER_SIZE + in.getInt(in.position()));
+				large.put(in);
+				buffers.release(in);
+				in = large;
+			} else if (!in.hasRemaining() && !in.isDirect()) {
+				// done with the large frame
+				in = buffers.acquire();
+			} else {
+				in.compact();
+			}
+		}
+
+		@Override
+		public void close() {
+			endpoint.inbound.remove(this);
+			closeQuietly(channel);
+			// on the selector thread, which may be reading into the buffer
+			loop.execute(() -> {
+				if (in != null) {
+					buffers.release(in);
+					in = null;
+				}
+			});
+		}
+	}
+}
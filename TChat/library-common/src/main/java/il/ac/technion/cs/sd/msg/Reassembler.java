@@ -0,0 +1,209 @@
+package il.ac.technion.cs.sd.msg;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits encoded messages that are too long to send whole into fragments, and joins the
+ * fragments back on the receiving side.
+ * The content of a fragment is its header, id ';' index ';' count ';' in base 36, followed by
+ * its slice of the encoded message. Each fragment is sequenced and acknowledged on its own.
+ * The receiver keeps the fragments of a bounded number of messages and characters; the oldest
+ * incomplete message is discarded to make room, so a message whose fragment was given up on
+ * does not hold memory forever. A message that could not fit in the bound whole is never kept, and
+ * the slices are kept by index only once received, so the count read from a fragment allocates nothing.
+ * Fragment ids start over in every session of a sender, so a message is known by its sender, session
+ * and fragment id, and the incomplete messages of a previous session of the sender are discarded.
+ */
+class Reassembler {
+	static final int DEFAULT_MAX_PARTIALS = 64;
+	static final int DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+
+	private static final char HEADER_END = ';';
+	private static final int RADIX = Character.MAX_RADIX;
+
+	private final int maxPartials;
+	private final int maxChars;
+	private int chars = 0;
+	private long discarded = 0;
+
+	// the messages with some of their fragments received, by sender, session and fragment id, oldest first
+	private final Map<String, Partial> partials = new LinkedHashMap<>();
+
+	private static class Partial {
+		final String from;
+		final long session;
+		final int count;
+		final Map<Integer, String> slices = new HashMap<>();
+		int chars = 0;
+
+		Partial(String from, long session, int count) {
+			this.from = from;
+			this.session = session;
+			this.count = count;
+		}
+	}
+
+	Reassembler() {
+		this(DEFAULT_MAX_PARTIALS, DEFAULT_MAX_CHARS);
+	}
+
+	/**
+	 * @param maxPartials the maximal number of incomplete messages kept
+	 * @param maxChars the maximal number of characters kept in the fragments of incomplete messages
+	 */
+	Reassembler(int maxPartials, int maxChars) {
+		if (maxPartials < 1 || maxChars < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxPartials = maxPartials;
+		this.maxChars = maxChars;
+	}
+
+	static List<Message> fragment(String from, String encoded, int maxFragmentSize, long fragmentId) {
+		return fragment(from, null, encoded, maxFragmentSize, fragmentId);
+	}
+
+	/**
+	 * @param from the sender of the message
+	 * @param via the address of the messenger sending on behalf of the sender, which the fragments
+	 * are acked to; null if it is the sender itself
+	 * @param encoded the encoded message to split
+	 * @param maxFragmentSize the maximal length of a fragment in its envelope
+	 * @param fragmentId identifies the message among the fragmented messages of the sender
+	 * @return the fragments of the message, in order, not yet sequenced
+	 */
+	static List<Message> fragment(String from, String via, String encoded, int maxFragmentSize, long fragmentId) {
+		// there are no more fragments than characters, so the index and the count are no longer than this
+		int countLength = Integer.toString(encoded.length(), RADIX).length();
+		int headerLength = Long.toString(fragmentId, RADIX).length() + 2 * countLength + 3;
+		int sliceSize = maxFragmentSize - EnvelopeCodec.maxHeaderLength(from, via) - headerLength;
+		if (sliceSize < 1) {
+			throw new IllegalArgumentException("fragments are too small for their header");
+		}
+		int count = (encoded.length() + sliceSize - 1) / sliceSize;
+		List<Message> $ = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String slice = encoded.substring(i * sliceSize, Math.min(encoded.length(), (i + 1) * sliceSize));
+			String header = Long.toString(fragmentId, RADIX) + HEADER_END + Integer.toString(i, RADIX) + HEADER_END
+					+ Integer.toString(count, RADIX) + HEADER_END;
+			Message fragment = new Message(from, header + slice, MessageType.FRAGMENT);
+			fragment.setVia(via);
+			$.add(fragment);
+		}
+		return $;
+	}
+
+	/**
+	 * @param from the address of the sender of the fragment
+	 * @param session the session of the sender of the fragment
+	 * @param content the content of the fragment
+	 * @return the encoded message, if this was its last missing fragment; null otherwise
+	 */
+	synchronized String add(String from, long session, String content) {
+		int idEnd = content.indexOf(HEADER_END);
+		int indexEnd = content.indexOf(HEADER_END, idEnd + 1);
+		int countEnd = content.indexOf(HEADER_END, indexEnd + 1);
+		if (idEnd < 0 || indexEnd < 0 || countEnd < 0) {
+			return null;
+		}
+		int index;
+		int count;
+		try {
+			index = Integer.parseInt(content.substring(idEnd + 1, indexEnd), RADIX);
+			count = Integer.parseInt(content.substring(indexEnd + 1, countEnd), RADIX);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		// every fragment holds a character at least, so more fragments than that could not fit
+		if (count < 1 || count > maxChars || index < 0 || index >= count) {
+			return null;
+		}
+
+		String key = from + HEADER_END + Long.toString(session, RADIX) + HEADER_END + content.substring(0, idEnd);
+		String slice = content.substring(countEnd + 1);
+		Partial partial = partials.get(key);
+		if (partial == null) {
+			discardPreviousSessions(from, session);
+			partial = new Partial(from, session, count);
+			partials.put(key, partial);
+		} else if (partial.count != count || partial.slices.containsKey(index)) {
+			return null;
+		}
+		if (partial.chars + slice.length() > maxChars) {
+			// the message cannot fit whole
+			partials.remove(key);
+			chars -= partial.chars;
+			discarded++;
+			return null;
+		}
+		discardOldest(key, slice.length());
+		partial.slices.put(index, slice);
+		partial.chars += slice.length();
+		chars += slice.length();
+
+		if (partial.slices.size() == count) {
+			partials.remove(key);
+			chars -= partial.chars;
+			StringBuilder $ = new StringBuilder(partial.chars);
+			for (int i = 0; i < count; i++) {
+				$.append(partial.slices.get(i));
+			}
+			return $.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the incomplete messages of the sender from other sessions, whose missing fragments
+	 * will not be sent, as the sender was restarted
+	 */
+	private void discardPreviousSessions(String from, long session) {
+		Iterator<Partial> partial = partials.values().iterator();
+		while (partial.hasNext()) {
+			Partial previous = partial.next();
+			if (previous.session != session && previous.from.equals(from)) {
+				chars -= previous.chars;
+				partial.remove();
+				discarded++;
+			}
+		}
+	}
+
+	/**
+	 * Discards the oldest incomplete messages, other than the kept one, while over the bounds
+	 * @param room the number of characters about to be added
+	 */
+	private void discardOldest(String kept, int room) {
+		Iterator<Map.Entry<String, Partial>> oldest = partials.entrySet().iterator();
+		while ((partials.size() > maxPartials || chars + room > maxChars) && oldest.hasNext()) {
+			Map.Entry<String, Partial> partial = oldest.next();
+			if (partial.getKey().equals(kept)) {
+				continue;
+			}
+			chars -= partial.getValue().chars;
+			oldest.remove();
+			discarded++;
+		}
+	}
+
+	/**
+	 * @return the number of incomplete messages that were discarded to make room, or as their sender was restarted
+	 */
+	synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * @return the number of incomplete messages kept
+	 */
+	synchronized int getPartials() {
+		return partials.size();
+	}
+}
@@ -0,0 +1,119 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.Arrays;
+
+/**
+ * The receiving side of the stream of messages from a single sender.
+ * Keeps track of the sequence numbers received so far, to acknowledge them cumulatively
+ * and to recognize retransmissions of messages that were already received.
+ * Messages received after a gap are remembered in a fixed size bitmap, so a window
+ * takes the same amount of memory however far behind the sender's retransmissions are.
+ */
+class ReceiveWindow {
+	/**
+	 * What to do with a received message
+	 */
+	enum Verdict {
+		// first time the message is received; deliver and ack it
+		NEW,
+		// a retransmission of a message that was already delivered; only ack it
+		DUPLICATE,
+		// too far ahead of the gap to be tracked; drop it without an ack, so it is retransmitted
+		BEYOND_WINDOW,
+	}
+
+	private final long session;
+
+	// every message up to this sequence number was received
+	private long receivedUpTo = 0;
+	// the messages received after receivedUpTo, seq is held by bit (seq % size)
+	private final long[] receivedAfterGap;
+	private final int size;
+
+	/**
+	 * @param session the session of the sender this window tracks
+	 * @param size the number of sequence numbers after a gap that can be tracked. a multiple of 64
+	 */
+	ReceiveWindow(long session, int size) {
+		if (size <= 0 || size % Long.SIZE != 0) {
+			throw new IllegalArgumentException();
+		}
+		this.session = session;
+		this.size = size;
+		receivedAfterGap = new long[size / Long.SIZE];
+	}
+
+	long getSession() {
+		return session;
+	}
+
+	/**
+	 * Records a received message
+	 * @param seq the sequence number of the message
+	 * @param settledUpTo the sender already knows every message up to this one was received
+	 */
+	synchronized Verdict record(long seq, long settledUpTo) {
+		if (settledUpTo > receivedUpTo) {
+			skipTo(settledUpTo);
+		}
+		if (seq <= receivedUpTo || isSet(seq)) {
+			return Verdict.DUPLICATE;
+		}
+		if (seq > receivedUpTo + size) {
+			return Verdict.BEYOND_WINDOW;
+		}
+		set(seq);
+		while (isSet(receivedUpTo + 1)) {
+			clear(receivedUpTo + 1);
+			receivedUpTo++;
+		}
+		return Verdict.NEW;
+	}
+
+	/**
+	 * Tells whether a message was received already, without recording it
+	 * @param seq the sequence number of the message
+	 * @param settledUpTo the sender already knows every message up to this one was received
+	 */
+	synchronized boolean isReceived(long seq, long settledUpTo) {
+		return seq <= Math.max(receivedUpTo, settledUpTo) || isSet(seq);
+	}
+
+	/**
+	 * @return the sequence number up to which every message was received
+	 */
+	synchronized long getReceivedUpTo() {
+		return receivedUpTo;
+	}
+
+	private void skipTo(long seq) {
+		if (seq - receivedUpTo >= size) {
+			Arrays.fill(receivedAfterGap, 0);
+		} else {
+			for (long skipped = receivedUpTo + 1; skipped <= seq; skipped++) {
+				clear(skipped);
+			}
+		}
+		receivedUpTo = seq;
+	}
+
+	private boolean isSet(long seq) {
+		return seq <= receivedUpTo + size && (receivedAfterGap[word(seq)] & bit(seq)) != 0;
+	}
+
+	private void set(long seq) {
+		receivedAfterGap[word(seq)] |= bit(seq);
+	}
+
+	private void clear(long seq) {
+		receivedAfterGap[word(seq)] &= ~bit(seq);
+	}
+
+	private int word(long seq) {
+		return (int)((seq % size) / Long.SIZE);
+	}
+
+	private static long bit(long seq) {
+		return 1L << (seq % Long.SIZE);
+	}
+}
@@ -1,130 +1,857 @@
 package il.ac.technion.cs.sd.msg;
 
 import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
+import il.ac.technion.cs.sd.msg.ReceiveWindow.Verdict;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class ReliableMessenger {
-	private Messenger messenger;
+	private volatile Transport transport;
 	private Consumer<Message> actionOnReceive;
 	private String user;
 	
-	// all listened to incoming messages will be written here
-	private final BlockingQueue<String>	incomingMessages	= new LinkedBlockingQueue<>();
+	// replies that arrived while no one was waiting for a reply are written here
+	private final BlockingQueue<Message>	incomingMessages	= new LinkedBlockingQueue<>();
+	// the futures waiting for a reply, by the request id of the message they wait on.
+	// a reply that names its request completes that future; any other reply completes the
+	// oldest one, as peers that do not echo request ids reply in order.
+	// both are guarded by pendingReplies, together with incomingMessages
+	private final Map<Long, CompletableFuture<String>> pendingReplies = new HashMap<>();
+	private final Queue<Long> replyWaiters = new ArrayDeque<>();
+	private final AtomicLong nextRequestId = new AtomicLong();
+	// the new messages and replies received, each counted once however many times it was sent
+	private final AtomicLong messagesReceived = new AtomicLong();
 	
-	private final int retrySendMessageTimeoutInMs = 20;
+	// the retransmission timeout towards a peer is estimated from its round trip times, within these bounds
+	private final int initialRetransmitTimeoutInMs = 20;
+	private volatile long minRetransmitTimeoutInMs = 5;
+	private volatile long maxRetransmitTimeoutInMs = 2000;
+	// how often to look for messages whose retransmission timeout expired
+	private final int retransmitTickInMs = 5;
+	// the number of retransmissions of a message before giving up on it
+	private volatile int maxRetries = Integer.MAX_VALUE;
+	// the time a message may take to be acknowledged before giving up on it; 0 for no deadline
+	private volatile long defaultDeadlineInMs = 0;
+	// told about every peer a message to which was given up on
+	private volatile Consumer<String> peerFailureListener = peer -> {};
 	
-	BiConsumer<Messenger, String> reliableAction = new BiConsumer<Messenger, String>() {
+	// why the messages of a killed messenger are given up on
+	private static final String KILLED = "the messenger was killed";
+	
+	// identifies this incarnation of the messenger to its peers
+	private final long session = new Random().nextLong();
+	
+	// the maximal number of unacknowledged messages per destination; 1 means stop-and-wait
+	private final int sendWindowSize;
+	private final ConcurrentMap<String, SendWindow> sendWindows = new ConcurrentHashMap<>();
+	private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+	private final ScheduledExecutorService retransmitTimer;
+	
+	// when maxCoalescingDelayInMs is positive, messages to a destination are sent in batches
+	private volatile long maxCoalescingDelayInMs = 0;
+	private volatile int maxBatchSize = 0;
+	// contents of at least this many characters are compressed; 0 never compresses
+	private volatile int compressionThreshold = 0;
+	// messages encoded longer than this are sent in fragments; 0 never fragments
+	private volatile int maxFragmentSize = 0;
+	private final Reassembler reassembler = new Reassembler();
+	private final ConcurrentMap<String, Coalescer> coalescers = new ConcurrentHashMap<>();
+	// the address of the messenger hosting each identity that sent from an address of another name,
+	// such as the users of a multiplexed client endpoint. messages to the identity are sent there.
+	// learned from incoming messages, and kept in the outbox, if any, to outlive a restart
+	private final ConcurrentMap<String, String> routes = new ConcurrentHashMap<>();
+	
+	// a new message that fails it is not acked, so its sender retransmits it later
+	private volatile Predicate<Message> admission = msg -> true;
+	
+	// runs actionOnReceive on new messages
+	private final MessageDispatcher dispatcher;
+	
+	// when set, the messages of each sender are delivered in the order they were sent
+	private volatile boolean orderedDelivery = false;
+	private final Resequencer resequencer = new Resequencer(this::deliver);
+	
+	// when set, the messages sent are recorded in it until they are acknowledged
+	private volatile DurableOutbox outbox = null;
+	
+	// set by kill, after which every message sent is given up on
+	private volatile boolean isKilled = false;
+	
+	BiConsumer<Transport, String> reliableAction = new BiConsumer<Transport, String>() {
 		@Override
-		public void accept(Messenger m, String arg) {
+		public void accept(Transport t, String arg) {
 			if (arg.equals("")){
-				incomingMessages.add(arg);
+				// an ack of a peer without sequence numbers, which cannot be matched to a message
+				return;
 			}
 			else
 			{
-				Message msg = Message.FromJsonString(arg);
+				if (EnvelopeCodec.isAck(arg)){
+					// acks are the most frequent payloads, so only their header is read
+					EnvelopeCodec.Ack ack = EnvelopeCodec.decodeAck(arg);
+					SendWindow window = ack == null ? null : sendWindows.get(ack.from);
+					if (window != null && ack.session == session){
+						window.acknowledge(ack.seq, ack.receivedUpTo);
+					}
+					return;
+				}
+				Message msg = Message.decode(arg);
+				if (msg == null){
+					// not a message of any version this messenger knows
+					return;
+				}
+				
+				if (msg.getMessageType().equals(MessageType.ACK)){
+					// an ack in json, of an older version
+					SendWindow window = sendWindows.get(msg.getFrom());
+					if (window != null && msg.getSession() == session){
+						window.acknowledge(msg.getSeq(), msg.getAck());
+					}
+					return;
+				}
+				
+				if ((msg.getSeq() == 0 || !duplicateFilter.isReceived(msg)) && !admission.test(msg)){
+					// neither acked nor recorded, so it is received anew when it is retransmitted
+					return;
+				}
 				
+				Verdict verdict = Verdict.NEW;
 				try {
-					m.send(msg.getFrom(), "");
+					// sequenced messages are acked by their sequence number, others by an empty message
+					String ack = "";
+					if (msg.getSeq() != 0){
+						verdict = duplicateFilter.record(msg);
+						if (verdict == Verdict.BEYOND_WINDOW){
+							return;
+						}
+						ack = Message.ack(user, msg, duplicateFilter.receivedUpTo(msg)).encode();
+					}
+					t.send(msg.peer(), ack);
 				} catch (MessengerException e) {
 					//e.printStackTrace();
 					// sending ack cannot fail
 					//throw new RuntimeException("Error sending ack to: " + msg.getFrom());
 				}
 				
-				if (msg.getMessageType().equals(MessageType.REPLIED_MESSAGE)){
-					incomingMessages.add(arg);
-				}else if (msg.getMessageType().equals(MessageType.NEW_MESSAGE)){
-					new Thread(() -> {actionOnReceive.accept(msg);}).start();
-				}	
+				if (verdict == Verdict.DUPLICATE){
+					// a retransmission of a message whose ack was lost
+					return;
+				}
+				
+				if (orderedDelivery && msg.getSeq() != 0){
+					resequencer.receive(msg);
+				}else{
+					deliver(msg);
+				}
 			}
 		}
 	};
 	
+	private void deliver(Message msg) {
+		if (msg.getMessageType().equals(MessageType.REPLIED_MESSAGE) 
+				|| msg.getMessageType().equals(MessageType.NEW_MESSAGE)){
+			learnRoute(msg);
+		}
+		if (msg.getMessageType().equals(MessageType.REPLIED_MESSAGE)){
+			messagesReceived.incrementAndGet();
+			CompletableFuture<String> waiter = null;
+			synchronized (pendingReplies){
+				if (msg.getInReplyTo() != 0){
+					// a reply whose request was given up on is dropped
+					waiter = pendingReplies.remove(msg.getInReplyTo());
+					replyWaiters.remove(msg.getInReplyTo());
+				}else{
+					Long requestId = replyWaiters.poll();
+					if (requestId != null){
+						waiter = pendingReplies.remove(requestId);
+					}else{
+						incomingMessages.add(msg);
+					}
+				}
+			}
+			if (waiter != null){
+				waiter.complete(msg.getContent());
+			}
+		}else if (msg.getMessageType().equals(MessageType.NEW_MESSAGE)){
+			messagesReceived.incrementAndGet();
+			// the messages of an identity are in order, whichever address they came through
+			String key = msg.getTo() != null ? msg.getTo() : msg.getFrom();
+			dispatcher.dispatch(key, () -> actionOnReceive.accept(msg));
+		}else if (msg.getMessageType().equals(MessageType.BATCH)){
+			List<Message> messages;
+			try {
+				messages = EnvelopeCodec.unpack(msg.getContent());
+			} catch (IllegalArgumentException e) {
+				return;
+			}
+			for (Message packed : messages){
+				if (packed.getVia() == null && !packed.getFrom().equals(msg.peer())){
+					// the packed messages of other identities came through the address of the batch
+					packed.setVia(msg.peer());
+				}
+				deliver(packed);
+			}
+		}else if (msg.getMessageType().equals(MessageType.FRAGMENT)){
+			String whole = reassembler.add(msg.getFrom(), msg.getSession(), msg.getContent());
+			if (whole != null){
+				Message reassembled = Message.decode(whole);
+				if (reassembled != null){
+					deliver(reassembled);
+				}
+			}
+		}
+	}
+	
+	private void learnRoute(Message msg) {
+		String address = msg.getVia() != null ? msg.getVia() : msg.getFrom();
+		if (address.equals(addressOf(msg.getFrom()))){
+			return;
+		}
+		if (msg.getVia() != null){
+			routes.put(msg.getFrom(), msg.getVia());
+		}else{
+			// the identity now sends from an address of its own
+			routes.remove(msg.getFrom());
+		}
+		DurableOutbox current = outbox;
+		if (current != null){
+			// on the thread of the outbox, as this is the receiving thread
+			current.recordRouteLater(msg.getFrom(), address);
+		}
+	}
+	
+	/**
+	 * @return the address to send the messages for the identity to
+	 */
+	private String addressOf(String identity) {
+		return routes.getOrDefault(identity, identity);
+	}
+	
 	public ReliableMessenger(String user, Consumer<Message> action) {
+		this(user, action, 1);
+	}
+	
+	/**
+	 * Creates a messenger that keeps up to sendWindowSize unacknowledged messages in flight
+	 * per destination. With a window larger than 1, {@link #Send(String, Message)} returns once
+	 * the message is transmitted, and blocks only while the window towards the destination is full.
+	 * @param user the address of this messenger
+	 * @param action the action to take when a new message arrives
+	 * @param sendWindowSize the maximal number of unacknowledged messages per destination
+	 */
+	public ReliableMessenger(String user, Consumer<Message> action, int sendWindowSize) {
+		this(user, action, sendWindowSize, MessageDispatcher.createDefault());
+	}
+	
+	/**
+	 * Creates a messenger that runs the action on new messages with the given dispatcher.
+	 * Messages of the same sender are handed to the action one at a time, in the order they arrived.
+	 * @param user the address of this messenger
+	 * @param action the action to take when a new message arrives
+	 * @param sendWindowSize the maximal number of unacknowledged messages per destination
+	 * @param dispatcher runs the action. it is shut down when the messenger is killed
+	 */
+	public ReliableMessenger(String user, Consumer<Message> action, int sendWindowSize, MessageDispatcher dispatcher) {
+		this(user, action, sendWindowSize, dispatcher, TransportFactory.messenger());
+	}
+	
+	/**
+	 * Creates a messenger over the given transport, such as a {@link LoopbackNetwork}.
+	 * @param user the address of this messenger
+	 * @param action the action to take when a new message arrives
+	 * @param sendWindowSize the maximal number of unacknowledged messages per destination
+	 * @param dispatcher runs the action. it is shut down when the messenger is killed
+	 * @param transports starts the transport of this messenger
+	 */
+	public ReliableMessenger(String user, Consumer<Message> action, int sendWindowSize, MessageDispatcher dispatcher,
+			TransportFactory transports) {
+		if (sendWindowSize < 1 || dispatcher == null || transports == null){
+			throw new IllegalArgumentException();
+		}
 		actionOnReceive = action;
 		this.user = user;
+		this.sendWindowSize = sendWindowSize;
+		this.dispatcher = dispatcher;
+		
+		retransmitTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "retransmit-" + user);
+			t.setDaemon(true);
+			return t;
+		});
+		retransmitTimer.scheduleWithFixedDelay(this::retransmitExpired, 
+				retransmitTickInMs, retransmitTickInMs, TimeUnit.MILLISECONDS);
 		
 		try {
-			messenger = new MessengerFactory().start(user, reliableAction);
+			transport = transports.start(user, reliableAction);
 		} catch (MessengerException e) {
 			//e.printStackTrace();
 			System.out.println(e.getLocalizedMessage());
+			retransmitTimer.shutdownNow();
+			dispatcher.shutdown();
 			throw new RuntimeException("Failed to initialize messenger");
 		}
 	}
 	
+	/**
+	 * Sends the message within the default deadline, see {@link #Send(String, Message, long)}
+	 */
 	public void Send(String to, Message msg) {
-		if (to == null || msg == null){
+		Send(to, msg, defaultDeadlineInMs);
+	}
+	
+	/**
+	 * Sends the message. With a send window of 1, and no coalescing, waits for its ack.
+	 * @param deadlineInMs the time the message may take to be acknowledged; 0 for no deadline
+	 * @throws DeliveryFailedException if the message is given up on while waiting for its ack
+	 */
+	public void Send(String to, Message msg, long deadlineInMs) {
+		CompletableFuture<Void> acked = SendAsync(to, msg, deadlineInMs);
+		if (sendWindowSize == 1 && maxCoalescingDelayInMs == 0){
+			join(acked);
+		}
+	}
+	
+	/**
+	 * Sends the message within the default deadline, see {@link #SendAsync(String, Message, long)}
+	 */
+	public CompletableFuture<Void> SendAsync(String to, Message msg) {
+		return SendAsync(to, msg, defaultDeadlineInMs);
+	}
+	
+	/**
+	 * Sends the message without waiting for its ack.
+	 * Blocks only while the window towards the destination is full, and not past the deadline.
+	 * @param deadlineInMs the time the message may take to be acknowledged; 0 for no deadline
+	 * @return a future completed when the message is acknowledged, or completed exceptionally
+	 * with a DeliveryFailedException when it is given up on
+	 */
+	public CompletableFuture<Void> SendAsync(String to, Message msg, long deadlineInMs) {
+		if (to == null || msg == null || deadlineInMs < 0){
 			throw new IllegalArgumentException();
 		}
-		
-		String jsonMessage = msg.ToJsonString();
-		
-		String ack = null;
-		while (ack == null){
+		DurableOutbox current = outbox;
+		if (current == null){
+			return transmit(to, msg, false, deadlineInMs);
+		}
+		// recorded before it is transmitted, so it is sent again if this process stops before the ack
+		return transmitRecorded(current, current.record(to, msg), to, msg, deadlineInMs);
+	}
+	
+	private CompletableFuture<Void> transmitRecorded(DurableOutbox current, long id, String to, Message msg, 
+			long deadlineInMs) {
+		CompletableFuture<Void> $;
+		try {
+			$ = transmit(to, msg, false, deadlineInMs);
+		} catch (RuntimeException e) {
+			current.done(id);
+			throw e;
+		}
+		// a message given up on is done as well, as its sender was told so. marked on the thread of
+		// the outbox, as the ack completes the future on the receiving thread
+		$.whenComplete((result, failure) -> current.doneLater(id));
+		return $;
+	}
+	
+	/**
+	 * Records every message sent with Send or SendAsync in the outbox until it is acknowledged or
+	 * given up on, and sends again the messages the outbox holds from before, such as those of a
+	 * previous run of this messenger that stopped before they were acknowledged. Messages that
+	 * await a reply are not recorded, as no one awaits the reply after a restart.
+	 * The routes to identities hosted by endpoints of other addresses are kept in the outbox too, so
+	 * after a restart messages to them reach their endpoints before they send again. Without an
+	 * outbox, the routes are learned anew from incoming messages, and until an identity sends,
+	 * messages to it are sent to its own name and given up on.
+	 * The outbox is closed when the messenger is killed.
+	 */
+	public void setOutbox(DurableOutbox outbox) {
+		if (outbox == null){
+			throw new IllegalArgumentException();
+		}
+		if (this.outbox != null){
+			throw new RuntimeException("the messenger already has an outbox");
+		}
+		// the routes learned meanwhile are newer than those of the outbox
+		for (Map.Entry<String, String> route : outbox.getRoutes().entrySet()){
+			routes.putIfAbsent(route.getKey(), route.getValue());
+		}
+		for (Map.Entry<String, String> route : routes.entrySet()){
+			outbox.recordRoute(route.getKey(), route.getValue());
+		}
+		this.outbox = outbox;
+		for (DurableOutbox.Entry entry : outbox.getPending()){
+			Message msg = Message.decode(entry.encoded);
+			if (msg == null){
+				outbox.done(entry.id);
+				continue;
+			}
+			transmitRecorded(outbox, entry.id, entry.to, msg, defaultDeadlineInMs);
+		}
+	}
+	
+	/**
+	 * Waits for the future, throwing the RuntimeException it failed with
+	 */
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			// the message was given up on, or the messenger was killed
+			throw (RuntimeException)e.getCause();
+		}
+	}
+	
+	/**
+	 * Sets the number of times a message is retransmitted before giving up on it,
+	 * in which case Send throws a DeliveryFailedException. Unlimited by default.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 0){
+			throw new IllegalArgumentException();
+		}
+		this.maxRetries = maxRetries;
+	}
+	
+	/**
+	 * Sets the content length from which the content of sent messages is deflated, when that makes
+	 * it shorter. Receivers inflate it whatever their own setting. Off by default.
+	 * @param thresholdInChars the length from which to compress; 0 to never compress
+	 */
+	public void setCompressionThreshold(int thresholdInChars) {
+		if (thresholdInChars < 0){
+			throw new IllegalArgumentException();
+		}
+		compressionThreshold = thresholdInChars;
+	}
+	
+	/**
+	 * Sets the length above which an encoded message is sent in fragments. Each fragment is
+	 * acknowledged and retransmitted on its own, and the receiver joins them back whatever its own setting.
+	 * Off by default.
+	 * @param maxFragmentSize the maximal length of a fragment in its envelope, at least 128; 0 to never fragment
+	 */
+	public void setMaxFragmentSize(int maxFragmentSize) {
+		if (maxFragmentSize != 0 && maxFragmentSize < 128){
+			throw new IllegalArgumentException();
+		}
+		this.maxFragmentSize = maxFragmentSize;
+	}
+	
+	/**
+	 * @return the number of fragmented messages that were discarded before all their fragments arrived
+	 */
+	public long getFragmentedMessagesDiscarded() {
+		return reassembler.getDiscarded();
+	}
+	
+	/**
+	 * Sets the time a message sent without a deadline of its own may take to be acknowledged,
+	 * after which Send throws a DeliveryFailedException. No deadline by default.
+	 * @param deadlineInMs the deadline; 0 for no deadline
+	 */
+	public void setDefaultDeadline(long deadlineInMs) {
+		if (deadlineInMs < 0){
+			throw new IllegalArgumentException();
+		}
+		defaultDeadlineInMs = deadlineInMs;
+	}
+	
+	/**
+	 * Sets the listener told the address of a peer whenever a message to it is given up on,
+	 * which usually means the peer went away. A peer that hosts identities of other names, such as
+	 * a multiplexed client endpoint, is told as each of the identities routed to it instead.
+	 * It may be told about the same peer more than once, and runs on the retransmission thread,
+	 * so it must return quickly.
+	 */
+	public void setPeerFailureListener(Consumer<String> listener) {
+		if (listener == null){
+			throw new IllegalArgumentException();
+		}
+		peerFailureListener = listener;
+	}
+	
+	/**
+	 * Sets the bounds of the retransmission timeout estimated for peers that were not sent to yet.
+	 * @param minInMs the lower bound of the timeout
+	 * @param maxInMs the upper bound of the timeout, also when it is backed off
+	 */
+	public void setRetransmitTimeoutBounds(long minInMs, long maxInMs) {
+		if (minInMs <= 0 || minInMs > maxInMs){
+			throw new IllegalArgumentException();
+		}
+		minRetransmitTimeoutInMs = minInMs;
+		maxRetransmitTimeoutInMs = maxInMs;
+	}
+	
+	/**
+	 * Sets whether the messages of each sender are handed on in the order they were sent.
+	 * Otherwise they are handed on in the order they arrive, which may differ when messages are
+	 * retransmitted. In both modes, messages of different senders are handled in parallel.
+	 */
+	public void setOrderedDelivery(boolean orderedDelivery) {
+		this.orderedDelivery = orderedDelivery;
+	}
+	
+	/**
+	 * Sets the test a new message must pass to be acknowledged and handed on. A message that fails it
+	 * is dropped without an ack, so its sender retransmits it later, backing off as for a lost message:
+	 * a receiver that cannot keep up slows its senders down this way, rather than holding on to what
+	 * they send. Retransmissions of messages received already are acked whatever the test says.
+	 * Messages of a sender may then arrive out of order, see {@link #setOrderedDelivery(boolean)}.
+	 * The test runs on the receiving thread, on whole messages, batches and fragments alike, so it
+	 * must return quickly. Every message passes by default.
+	 */
+	public void setAdmission(Predicate<Message> admission) {
+		if (admission == null){
+			throw new IllegalArgumentException();
+		}
+		this.admission = admission;
+	}
+	
+	/**
+	 * Sets whether the messages sent to a destination within a short delay are packed into one batch,
+	 * which is transmitted and acknowledged as a single message. The receiver hands them on in order.
+	 * While coalescing, {@link #Send(String, Message)} returns once the message is queued in its batch,
+	 * whatever the window size; {@link #flush(String)} waits for the batches to be acknowledged.
+	 * So Send never throws a DeliveryFailedException while coalescing: a batch that is given up on
+	 * fails the futures of {@link #SendAsync(String, Message)}, and is told to the peer failure listener.
+	 * @param maxDelayInMs the longest time a message waits for others to join its batch; 0 disables coalescing
+	 * @param maxBatchSize the size, in characters, at which a batch is sent without waiting for the delay
+	 */
+	public void setCoalescing(long maxDelayInMs, int maxBatchSize) {
+		if (maxDelayInMs < 0 || (maxDelayInMs > 0 && maxBatchSize < 1)){
+			throw new IllegalArgumentException();
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.maxCoalescingDelayInMs = maxDelayInMs;
+		for (Coalescer coalescer : coalescers.values()){
+			coalescer.flush();
+		}
+		coalescers.clear();
+	}
+	
+	/**
+	 * @param peer the address of a peer
+	 * @return the current retransmission timeout towards the peer, in milliseconds
+	 */
+	public long getRetransmitTimeout(String peer) {
+		SendWindow window = sendWindows.get(peer);
+		if (window == null){
+			return Math.max(minRetransmitTimeoutInMs, Math.min(maxRetransmitTimeoutInMs, initialRetransmitTimeoutInMs));
+		}
+		return TimeUnit.NANOSECONDS.toMillis(window.getRetransmitTimeout());
+	}
+	
+	/**
+	 * Blocks until all the messages sent to the destination are acknowledged or given up on.
+	 * Only meaningful with a send window larger than 1, where Send does not wait for the ack.
+	 * @param to the destination to wait for
+	 */
+	public void flush(String to) {
+		String address = addressOf(to);
+		Coalescer coalescer = coalescers.get(address);
+		if (coalescer != null){
+			coalescer.flush();
+		}
+		SendWindow window = sendWindows.get(address);
+		if (window != null){
+			window.flush();
+		}
+	}
+	
+	/**
+	 * Blocks until all the messages sent by this messenger are acknowledged or given up on.
+	 */
+	public void flush() {
+		for (Coalescer coalescer : coalescers.values()){
+			coalescer.flush();
+		}
+		for (SendWindow window : sendWindows.values()){
+			window.flush();
+		}
+	}
+	
+	/**
+	 * Blocks until all the messages sent by this messenger are acknowledged or given up on,
+	 * or until the timeout passes.
+	 * @return false if some message was still unacknowledged when the timeout passed
+	 */
+	public boolean flush(long timeoutInMs) {
+		if (timeoutInMs < 0){
+			throw new IllegalArgumentException();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+		for (Coalescer coalescer : coalescers.values()){
+			coalescer.flush();
+		}
+		for (SendWindow window : sendWindows.values()){
+			if (!window.flush(deadline)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param urgent when coalescing, whether to send the batch of the message without waiting for others
+	 * @param deadlineInMs the time the message may take to be acknowledged; 0 for no deadline
+	 */
+	private CompletableFuture<Void> transmit(String to, Message msg, boolean urgent, long deadlineInMs) {
+		if (isKilled){
+			CompletableFuture<Void> $ = new CompletableFuture<>();
+			$.completeExceptionally(new DeliveryFailedException(to, 0, KILLED));
+			return $;
+		}
+		msg.setSession(session);
+		String address = addressOf(to);
+		if (!address.equals(to)){
+			msg.setTo(to);
+		}
+		long deadline = deadlineInMs == 0 ? SendWindow.NO_DEADLINE 
+				: System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineInMs);
+		long maxDelayInMs = maxCoalescingDelayInMs;
+		CompletableFuture<Void> $;
+		if (maxDelayInMs > 0){
+			// control messages are not held back waiting for others
+			boolean isUrgent = urgent || msg.getPriority() == Priority.CONTROL;
+			$ = coalescers.computeIfAbsent(address, dest -> new Coalescer(user, maxDelayInMs, maxBatchSize, 
+					windowTo(dest), retransmitTimer)).add(msg, isUrgent, deadline);
+		}else{
+			$ = windowTo(address).send(msg, deadline);
+		}
+		if (isKilled){
+			// killed while the message was sent, maybe after kill gave up on the messages sent before it
+			giveUpAll();
+		}
+		return address.equals(to) ? $ : failingAs(to, $);
+	}
+	
+	/**
+	 * @return a future completed as the given one, whose DeliveryFailedException names the identity
+	 * the message was for rather than the address of the endpoint hosting it
+	 */
+	private static CompletableFuture<Void> failingAs(String identity, CompletableFuture<Void> sent) {
+		CompletableFuture<Void> $ = new CompletableFuture<>();
+		sent.whenComplete((result, failure) -> {
+			Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+			if (cause == null){
+				$.complete(null);
+			}else if (cause instanceof DeliveryFailedException){
+				$.completeExceptionally(((DeliveryFailedException)cause).toIdentity(identity));
+			}else{
+				$.completeExceptionally(cause);
+			}
+		});
+		return $;
+	}
+	
+	/**
+	 * Gives up on every message not acknowledged yet: in flight, waiting for room in a window, or in a batch
+	 */
+	private void giveUpAll() {
+		for (SendWindow window : sendWindows.values()){
+			window.close(KILLED);
+		}
+		// sent to windows that give up on them
+		for (Coalescer coalescer : coalescers.values()){
+			coalescer.flush();
+		}
+	}
+	
+	private SendWindow windowTo(String to) {
+		return sendWindows.computeIfAbsent(to, dest -> new SendWindow(dest, sendWindowSize, 
+				new RttEstimator(initialRetransmitTimeoutInMs, minRetransmitTimeoutInMs, maxRetransmitTimeoutInMs), 
+				msg -> EnvelopeCodec.encode(stampVia(msg), compressionThreshold), () -> maxFragmentSize, payload -> {
+			Transport current = transport;
+			if (current == null){
+				return;
+			}
 			try {
-				messenger.send(to, jsonMessage);
-				ack = incomingMessages.poll(retrySendMessageTimeoutInMs, TimeUnit.MILLISECONDS);
+				current.send(dest, payload);
 			} catch (MessengerException e) {
-				//System.out.println("Error sending mail to server content " + msg.getContent());
-				//throw new RuntimeException("Error sending mail to server content " + msg.getContent());
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				//e.printStackTrace();
+				// the message will be retransmitted
 			}
+		}));
+	}
+	
+	/**
+	 * Marks a message sent on behalf of another identity with the address of this messenger,
+	 * which the receiver acks and routes replies to
+	 */
+	private Message stampVia(Message msg) {
+		if (msg.getVia() == null && !user.equals(msg.getFrom())){
+			msg.setVia(user);
+		}
+		return msg;
+	}
+	
+	private void retransmitExpired() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, SendWindow> entry : sendWindows.entrySet()){
+			if (entry.getValue().retransmitExpired(now, maxRetries)){
+				peerFailed(entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Tells the peer failure listener about the identities hosted at the address, or else the address
+	 */
+	private void peerFailed(String address) {
+		boolean isHost = false;
+		for (Map.Entry<String, String> route : routes.entrySet()){
+			if (route.getValue().equals(address)){
+				isHost = true;
+				tellPeerFailed(route.getKey());
+			}
+		}
+		if (!isHost){
+			tellPeerFailed(address);
+		}
+	}
+	
+	private void tellPeerFailed(String peer) {
+		try {
+			peerFailureListener.accept(peer);
+		} catch (RuntimeException e) {
+			// a failing listener must not stop the retransmissions
 		}
-		
-		return;
 	}
 	
 	public String SendAndAwaitReply(String to, Message msg) {
+		return join(SendAndAwaitReplyAsync(to, msg));
+	}
+	
+	/**
+	 * Sends the message without waiting for the reply.
+	 * The message carries a request id, and a reply that echoes it completes this future,
+	 * so any number of requests may await their replies at once. Replies that do not echo a
+	 * request id complete the futures in the order they were created; such a reply that arrived
+	 * earlier, while no future was waiting, completes the new future at once.
+	 * @return a future completed with the content of the reply, or completed exceptionally
+	 * with a DeliveryFailedException when the message is given up on
+	 */
+	public CompletableFuture<String> SendAndAwaitReplyAsync(String to, Message msg) {
 		if (to == null || msg == null){
 			throw new IllegalArgumentException();
 		}
 		
-		String jsonMessage = msg.ToJsonString();
-		
-		String ack = null;
-		while (ack == null){
-			try {
-				messenger.send(to, jsonMessage);
-				ack = incomingMessages.poll(retrySendMessageTimeoutInMs, TimeUnit.MILLISECONDS);
-			} catch (MessengerException e) {
-				//System.out.println("Error sending mail to server content " + msg.getContent());
-				//throw new RuntimeException("Error sending mail to server content " + msg.getContent());
-			} catch (InterruptedException e) { // TODO remove above...
-				// TODO Auto-generated catch block
-				//e.printStackTrace();
+		CompletableFuture<String> $ = new CompletableFuture<>();
+		long requestId = nextRequestId.incrementAndGet();
+		// the future waits before the message is sent, so it cannot miss a quick reply
+		synchronized (pendingReplies){
+			Message early = incomingMessages.poll();
+			if (early != null){
+				$.complete(early.getContent());
+				// the reply to this message will go to the next caller, as it did before request ids
+				requestId = 0;
+			}else{
+				pendingReplies.put(requestId, $);
+				replyWaiters.add(requestId);
 			}
 		}
+		msg.setRequestId(requestId);
 		
-		String reply = null;
-		try {
-			reply = incomingMessages.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			//e.printStackTrace();
-		}
-		
-		Message repliedMsg = Message.FromJsonString(reply);
-		return repliedMsg.getContent();
+		long sentRequestId = requestId;
+		// the reply is awaited at once, so there is no point in waiting for more messages to batch with
+		transmit(to, msg, true, defaultDeadlineInMs).whenComplete((result, failure) -> {
+			if (failure == null){
+				return;
+			}
+			synchronized (pendingReplies){
+				pendingReplies.remove(sentRequestId);
+				replyWaiters.remove(sentRequestId);
+			}
+			$.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+		});
+		return $;
 	}
 	
 	public String getAddress(){
 		return user;
 	}
 	
+	/**
+	 * @return the number of retransmitted messages that were received again and dropped
+	 */
+	public long getDuplicatesDropped() {
+		return duplicateFilter.getDuplicatesDropped();
+	}
+	
+	/**
+	 * @return the number of messages retransmitted by this messenger, to any destination
+	 */
+	public long getRetransmissions() {
+		long $ = 0;
+		for (SendWindow window : sendWindows.values()){
+			$ += window.getRetransmissions();
+		}
+		return $;
+	}
+	
+	/**
+	 * @return the number of new messages and replies received, not counting duplicates.
+	 * over time, this is the goodput of the messengers sending to this one
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+	
+	/**
+	 * @return the dispatcher running the action on new messages, to watch its queues
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+	
+	/**
+	 * Stops the messenger. The messages not acknowledged yet, and those sent from now on, are given up
+	 * on, failing their sends with a DeliveryFailedException, and the replies not received yet fail too.
+	 */
 	public void kill() {
+		isKilled = true;
+		retransmitTimer.shutdownNow();
 		try {
-			messenger.kill();
-			messenger = null;
+			transport.kill();
+			transport = null;
 		} catch (MessengerException e) {
 			//System.out.println("Error killing messenger");
 		}
+		dispatcher.shutdown();
+		DurableOutbox current = outbox;
+		if (current != null){
+			// the messages not acknowledged yet stay in it, to be sent by the next messenger
+			current.close();
+		}
+		giveUpAll();
+		
+		List<CompletableFuture<String>> waiting;
+		synchronized (pendingReplies){
+			waiting = new ArrayList<>(pendingReplies.values());
+			pendingReplies.clear();
+			replyWaiters.clear();
+		}
+		for (CompletableFuture<String> waiter : waiting){
+			waiter.completeExceptionally(new RuntimeException("messenger was killed before the reply arrived"));
+		}
 	}
 }
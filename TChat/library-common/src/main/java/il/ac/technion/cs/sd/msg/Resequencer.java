@@ -0,0 +1,87 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Restores the order in which each sender sent its messages, by their sequence numbers.
+ * A message that arrives before an earlier one of its sender is held until the gap is filled,
+ * or until the sender tells it gave up on the missing messages.
+ * Senders are tracked in a bounded table; the held messages of a sender that is forgotten are released.
+ */
+class Resequencer {
+	static final int DEFAULT_MAX_SENDERS = DuplicateFilter.DEFAULT_MAX_SENDERS;
+
+	private final Consumer<Message> deliver;
+	private final Map<String, Stream> streams;
+
+	/**
+	 * The order of the messages from a single sender
+	 */
+	private static class Stream {
+		final long session;
+		// the sequence number of the next message to deliver
+		long next;
+		final TreeMap<Long, Message> held = new TreeMap<>();
+
+		Stream(long session, long next) {
+			this.session = session;
+			this.next = next;
+		}
+	}
+
+	Resequencer(Consumer<Message> deliver) {
+		this(DEFAULT_MAX_SENDERS, deliver);
+	}
+
+	/**
+	 * @param maxSenders the number of senders to keep track of
+	 * @param deliver receives the messages in the order they were sent. called under the lock
+	 * of the resequencer, so it should only hand the message on
+	 */
+	Resequencer(int maxSenders, Consumer<Message> deliver) {
+		this.deliver = deliver;
+		streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+				if (size() <= maxSenders) {
+					return false;
+				}
+				eldest.getValue().held.values().forEach(deliver);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Accepts a sequenced message that is received for the first time, and delivers
+	 * every message of its sender that is now in order.
+	 */
+	synchronized void receive(Message msg) {
+		Stream stream = streams.get(msg.peer());
+		if (stream == null || stream.session != msg.getSession()) {
+			// whatever the sender already had acknowledged was delivered before
+			if (stream != null) {
+				stream.held.values().forEach(deliver);
+			}
+			stream = new Stream(msg.getSession(), msg.getAck() + 1);
+			streams.put(msg.peer(), stream);
+		}
+		stream.held.put(msg.getSeq(), msg);
+
+		// the sender no longer waits for messages up to its ack, so a gap there will not be filled
+		while (!stream.held.isEmpty() && stream.held.firstKey() <= msg.getAck()) {
+			deliver.accept(stream.held.pollFirstEntry().getValue());
+		}
+		stream.next = Math.max(stream.next, msg.getAck() + 1);
+
+		while (!stream.held.isEmpty() && stream.held.firstKey() == stream.next) {
+			deliver.accept(stream.held.pollFirstEntry().getValue());
+			stream.next++;
+		}
+	}
+}
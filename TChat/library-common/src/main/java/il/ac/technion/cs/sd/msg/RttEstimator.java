@@ -0,0 +1,68 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the retransmission timeout towards a single peer from the round trip times
+ * of its acks, following Jacobson's algorithm: the timeout is the smoothed round trip time
+ * plus four times its mean deviation. Every expiry doubles the timeout until a new sample arrives.
+ * By Karn's rule, only acks of messages that were never retransmitted are sampled.
+ */
+class RttEstimator {
+	private final long minTimeout;
+	private final long maxTimeout;
+
+	// all times are in nanoseconds
+	private long smoothedRtt;
+	private long rttVariance;
+	private long timeout;
+	private boolean hasSample = false;
+
+	/**
+	 * @param initialTimeoutInMs the timeout used before the first sample
+	 * @param minTimeoutInMs the lower bound of the timeout
+	 * @param maxTimeoutInMs the upper bound of the timeout, also for the backoff
+	 */
+	RttEstimator(long initialTimeoutInMs, long minTimeoutInMs, long maxTimeoutInMs) {
+		if (minTimeoutInMs <= 0 || minTimeoutInMs > maxTimeoutInMs) {
+			throw new IllegalArgumentException();
+		}
+		minTimeout = TimeUnit.MILLISECONDS.toNanos(minTimeoutInMs);
+		maxTimeout = TimeUnit.MILLISECONDS.toNanos(maxTimeoutInMs);
+		timeout = clamp(TimeUnit.MILLISECONDS.toNanos(initialTimeoutInMs));
+	}
+
+	/**
+	 * Updates the estimation with the round trip time of a message that was sent once
+	 * @param rtt the time from sending the message to receiving its ack, in nanoseconds
+	 */
+	synchronized void sample(long rtt) {
+		if (!hasSample) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+			hasSample = true;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		timeout = clamp(smoothedRtt + 4 * rttVariance);
+	}
+
+	/**
+	 * Doubles the timeout after it expired
+	 */
+	synchronized void backoff() {
+		timeout = clamp(2 * timeout);
+	}
+
+	/**
+	 * @return the current retransmission timeout, in nanoseconds
+	 */
+	synchronized long getTimeout() {
+		return timeout;
+	}
+
+	private long clamp(long value) {
+		return Math.max(minTimeout, Math.min(maxTimeout, value));
+	}
+}
@@ -0,0 +1,309 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * The sending side of a sliding window towards a single destination.
+ * Up to windowSize messages may be unacknowledged at once; each one is
+ * acknowledged separately and only the unacknowledged ones are retransmitted,
+ * once the retransmission timeout estimated for the destination expires.
+ * A message that misses its deadline, or its maximal number of retransmissions, is given up on.
+ */
+class SendWindow {
+	// a deadline far enough to never expire
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+	
+	private final String destination;
+	private final Function<Message, String> encode;
+	private final Consumer<String> transmit;
+	// messages encoded longer than this are sent in fragments; 0 never fragments
+	private final IntSupplier maxFragmentSize;
+	private final AtomicLong nextFragmentId = new AtomicLong();
+	private final Semaphore freeSlots;
+	private final RttEstimator rtt;
+	private long nextSeq = 1;
+	// set by close, after which every message is given up on. guarded by this
+	private String closedReason = null;
+	private final AtomicLong retransmissions = new AtomicLong();
+
+	// messages that were sent and not yet acknowledged, by their sequence number
+	private final ConcurrentNavigableMap<Long, Pending> inFlight = new ConcurrentSkipListMap<>();
+
+	/**
+	 * A message that was transmitted and is waiting for its ack.
+	 */
+	static class Pending {
+		final String payload;
+		final CompletableFuture<Void> acked = new CompletableFuture<>();
+		// times are of System.nanoTime
+		final long firstSentAt = System.nanoTime();
+		volatile long lastSentAt = firstSentAt;
+		volatile int retransmissions = 0;
+		final long deadline;
+
+		Pending(String payload, long deadline) {
+			this.payload = payload;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * @param destination the address the messages of this window are sent to
+	 * @param windowSize the maximal number of unacknowledged messages
+	 * @param rtt the estimator of the retransmission timeout towards the destination
+	 * @param encode encodes a message for transmission
+	 * @param maxFragmentSize the length above which an encoded message is sent in fragments; 0 for never
+	 * @param transmit sends an encoded message to the destination of this window
+	 */
+	SendWindow(String destination, int windowSize, RttEstimator rtt, Function<Message, String> encode, 
+			IntSupplier maxFragmentSize, Consumer<String> transmit) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.destination = destination;
+		this.rtt = rtt;
+		this.encode = encode;
+		this.maxFragmentSize = maxFragmentSize;
+		this.transmit = transmit;
+		freeSlots = new Semaphore(windowSize);
+	}
+
+	/**
+	 * Assigns the message its sequence number and transmits it.
+	 * A message longer than the maximal fragment size is sent as fragments instead, each with a
+	 * sequence number of its own, so a lost fragment is the only one retransmitted.
+	 * Blocks while the window is full, but not past the deadline.
+	 * @param deadline the System.nanoTime by which the message must be acknowledged, or NO_DEADLINE
+	 * @return a future completed when the message, or all its fragments, are acknowledged, 
+	 * or completed exceptionally with a DeliveryFailedException when it is given up on
+	 */
+	CompletableFuture<Void> send(Message msg, long deadline) {
+		int fragmentSize = maxFragmentSize.getAsInt();
+		if (fragmentSize > 0) {
+			String whole = encode.apply(msg);
+			if (whole.length() > fragmentSize) {
+				// encoding marked the message with the address to ack it to, if it is sent on behalf of
+				// another sender, and so are its fragments
+				List<Message> fragments = Reassembler.fragment(msg.getFrom(), msg.getVia(), whole, fragmentSize, 
+						nextFragmentId.incrementAndGet());
+				CompletableFuture<?>[] acked = new CompletableFuture<?>[fragments.size()];
+				for (int i = 0; i < acked.length; i++) {
+					Message fragment = fragments.get(i);
+					fragment.setSession(msg.getSession());
+					// encoded as any other message, which compresses a fragment only if that makes it shorter
+					acked[i] = sendOne(fragment, deadline);
+				}
+				return CompletableFuture.allOf(acked);
+			}
+		}
+		return sendOne(msg, deadline);
+	}
+	
+	private CompletableFuture<Void> sendOne(Message msg, long deadline) {
+		if (deadline == NO_DEADLINE) {
+			freeSlots.acquireUninterruptibly();
+		} else if (!acquireUntil(deadline)) {
+			CompletableFuture<Void> $ = new CompletableFuture<>();
+			$.completeExceptionally(new DeliveryFailedException(destination, 0, "the window stayed full until the deadline"));
+			return $;
+		}
+		Pending pending;
+		// a sequence number enters the window before any later one is assigned,
+		// so the acknowledged prefix never skips a message that is not in flight yet
+		synchronized (this) {
+			if (closedReason != null) {
+				freeSlots.release();
+				CompletableFuture<Void> $ = new CompletableFuture<>();
+				$.completeExceptionally(new DeliveryFailedException(destination, 0, closedReason));
+				return $;
+			}
+			msg.setAck(acknowledgedUpTo());
+			long seq = nextSeq++;
+			msg.setSeq(seq);
+			pending = new Pending(encode.apply(msg), deadline);
+			inFlight.put(seq, pending);
+		}
+		transmit.accept(pending.payload);
+		return pending.acked;
+	}
+
+	private boolean acquireUntil(long deadline) {
+		try {
+			return freeSlots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Marks the message with the given sequence number, and every message up to receivedUpTo,
+	 * as acknowledged, freeing their slots.
+	 * Acks for unknown or already acknowledged messages are ignored.
+	 */
+	void acknowledge(long seq, long receivedUpTo) {
+		Pending pending = inFlight.remove(seq);
+		if (pending != null && pending.retransmissions == 0) {
+			rtt.sample(System.nanoTime() - pending.firstSentAt);
+		}
+		complete(pending);
+		for (Long acked : inFlight.headMap(receivedUpTo, true).keySet()) {
+			complete(inFlight.remove(acked));
+		}
+	}
+
+	private void complete(Pending pending) {
+		if (pending == null) {
+			return;
+		}
+		freeSlots.release();
+		pending.acked.complete(null);
+	}
+
+	/**
+	 * @return the sequence number up to which every message was acknowledged
+	 */
+	synchronized long acknowledgedUpTo() {
+		try {
+			return inFlight.firstKey() - 1;
+		} catch (NoSuchElementException e) {
+			return nextSeq - 1;
+		}
+	}
+
+	/**
+	 * Retransmits every message that was not acknowledged within the retransmission timeout.
+	 * The timeout is backed off once per expiry of the oldest message in flight, as the messages
+	 * sent after it, which expire on later ticks, were lost in the same episode.
+	 * A message whose deadline passed, or that was already retransmitted maxRetries times,
+	 * is given up on instead; its future fails with a DeliveryFailedException.
+	 * @param now the current System.nanoTime
+	 * @return true if any message was given up on
+	 */
+	boolean retransmitExpired(long now, int maxRetries) {
+		long timeout = rtt.getTimeout();
+		boolean isOldest = true;
+		boolean oldestExpired = false;
+		boolean gaveUp = false;
+		for (Map.Entry<Long, Pending> entry : inFlight.entrySet()) {
+			Pending pending = entry.getValue();
+			if (pending.deadline != NO_DEADLINE && now - pending.deadline >= 0) {
+				gaveUp |= giveUp(entry.getKey(), pending, "not acknowledged before the deadline");
+				continue;
+			}
+			boolean wasOldest = isOldest;
+			isOldest = false;
+			if (now - pending.lastSentAt < timeout) {
+				continue;
+			}
+			if (pending.retransmissions >= maxRetries) {
+				gaveUp |= giveUp(entry.getKey(), pending, "not acknowledged after " + maxRetries + " retries");
+				continue;
+			}
+			oldestExpired |= wasOldest;
+			pending.retransmissions++;
+			retransmissions.incrementAndGet();
+			pending.lastSentAt = now;
+			transmit.accept(pending.payload);
+		}
+		if (oldestExpired) {
+			rtt.backoff();
+		}
+		return gaveUp;
+	}
+	
+	private boolean giveUp(long seq, Pending pending, String reason) {
+		if (!inFlight.remove(seq, pending)) {
+			// acknowledged meanwhile
+			return false;
+		}
+		freeSlots.release();
+		pending.acked.completeExceptionally(new DeliveryFailedException(destination, pending.retransmissions, reason));
+		return true;
+	}
+
+	/**
+	 * Gives up on every message in flight, and on every message sent from now on, such as when the
+	 * messenger is killed. Senders waiting for room in the window get it and give up as well.
+	 * @param reason why the messages are given up on
+	 */
+	void close(String reason) {
+		synchronized (this) {
+			closedReason = reason;
+		}
+		for (Map.Entry<Long, Pending> entry : inFlight.entrySet()) {
+			giveUp(entry.getKey(), entry.getValue(), reason);
+		}
+	}
+
+	/**
+	 * Blocks until every message sent so far is acknowledged or given up on.
+	 */
+	void flush() {
+		for (Pending pending : inFlight.values()) {
+			pending.acked.handle((result, failure) -> null).join();
+		}
+	}
+
+	/**
+	 * Blocks until every message sent so far is acknowledged or given up on, or until the deadline.
+	 * @param deadline the System.nanoTime to wait until
+	 * @return false if some message was still in flight at the deadline
+	 */
+	boolean flush(long deadline) {
+		for (Pending pending : inFlight.values()) {
+			try {
+				pending.acked.handle((result, failure) -> null).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				// handled above, so it cannot fail
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current retransmission timeout towards the destination, in nanoseconds
+	 */
+	long getRetransmitTimeout() {
+		return rtt.getTimeout();
+	}
+
+	/**
+	 * @return the number of retransmissions towards the destination so far
+	 */
+	long getRetransmissions() {
+		return retransmissions.get();
+	}
+
+	/**
+	 * @return true if a message can be sent without blocking
+	 */
+	boolean hasFreeSlot() {
+		return freeSlots.availablePermits() > 0;
+	}
+	
+	/**
+	 * @return the number of messages waiting for an ack
+	 */
+	int inFlightCount() {
+		return inFlight.size();
+	}
+}
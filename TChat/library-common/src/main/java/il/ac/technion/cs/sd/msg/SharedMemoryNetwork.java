@@ -0,0 +1,293 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Transports between processes on the same host, over rings in memory-mapped files under a
+ * shared directory. A transport owns the directory of its address, and every sender to it writes
+ * to a ring of its own there, so each ring has a single writer and a single reader and needs no
+ * atomic operations: the writers within a process take turns on a lock per ring.
+ * The receiving thread of a transport polls its rings, spinning while payloads keep coming and
+ * parking for up to a millisecond when they stop, so no system call is made to signal a payload.
+ * A payload is lost if there is no transport at its address, if it is too long for a ring, or if
+ * the ring stays full for longer than the send timeout; a {@link ReliableMessenger} retransmits it.
+ * A sender waits for room with the lock of the ring released, and the receiving thread, which sends
+ * the acks, does not wait at all: while it waits it does not drain the rings of its peers, which may
+ * be waiting for room in its own rings in turn.
+ * Payloads longer than a ring should be avoided with {@link ReliableMessenger#setMaxFragmentSize(int)}.
+ */
+public class SharedMemoryNetwork implements TransportFactory {
+	public static final int DEFAULT_RING_CAPACITY = 1024 * 1024;
+	private static final long SEND_TIMEOUT_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	// how often an idle receiver looks for the rings of new senders
+	private static final long SCAN_INTERVAL_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final String LOCK_FILE = "address.lock";
+	private static final String RING_SUFFIX = ".ring";
+
+	private final Path directory;
+	private final int ringCapacity;
+
+	/**
+	 * @param directory the directory shared by the processes, preferably on a memory file system
+	 * such as /dev/shm
+	 */
+	public SharedMemoryNetwork(Path directory) {
+		this(directory, DEFAULT_RING_CAPACITY);
+	}
+
+	/**
+	 * @param directory the directory shared by the processes
+	 * @param ringCapacity the size of the data of each ring, in bytes, a multiple of 4
+	 */
+	public SharedMemoryNetwork(Path directory, int ringCapacity) {
+		if (directory == null || ringCapacity < 64 || ringCapacity % 4 != 0) {
+			throw new IllegalArgumentException();
+		}
+		this.directory = directory;
+		this.ringCapacity = ringCapacity;
+	}
+
+	@Override
+	public Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException {
+		if (address == null || onReceive == null) {
+			throw new IllegalArgumentException();
+		}
+		Path inbox = inboxOf(address);
+		FileChannel lockChannel = null;
+		try {
+			Files.createDirectories(inbox);
+			lockChannel = FileChannel.open(inbox.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by this process
+				lock = null;
+			}
+			if (lock == null) {
+				lockChannel.close();
+				throw new MessengerException("address " + address + " is taken");
+			}
+			// the rings of a previous transport at the address, which did not clean up
+			deleteRings(inbox);
+		} catch (IOException e) {
+			closeQuietly(lockChannel);
+			throw new MessengerException("cannot receive at " + address + ": " + e.getMessage());
+		}
+		Endpoint $ = new Endpoint(address, inbox, lockChannel, onReceive);
+		$.receiver.start();
+		return $;
+	}
+
+	private Path inboxOf(String address) {
+		return directory.resolve(fileNameOf(address));
+	}
+
+	/**
+	 * @return the address, escaped to be a file name
+	 */
+	private static String fileNameOf(String address) {
+		try {
+			return URLEncoder.encode(address, StandardCharsets.UTF_8.name()).replace(".", "%2E").replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void deleteRings(Path inbox) throws IOException {
+		try (DirectoryStream<Path> rings = Files.newDirectoryStream(inbox, "*" + RING_SUFFIX)) {
+			for (Path ring : rings) {
+				MappedRing.map(ring, 4).close();
+				Files.deleteIfExists(ring);
+			}
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more to do with it
+		}
+	}
+
+	private class Endpoint implements Transport {
+		final String address;
+		final Path inbox;
+		final FileChannel lockChannel;
+		final Thread receiver;
+		// the rings this transport writes to, by destination
+		final ConcurrentMap<String, MappedRing> outbound = new ConcurrentHashMap<>();
+		// the rings this transport reads from, by file. used by the receiver only
+		final Map<Path, MappedRing> inbound = new HashMap<>();
+		volatile boolean killed = false;
+
+		Endpoint(String address, Path inbox, FileChannel lockChannel, BiConsumer<Transport, String> onReceive) {
+			this.address = address;
+			this.inbox = inbox;
+			this.lockChannel = lockChannel;
+			receiver = new Thread(() -> receive(onReceive), "shm-" + address);
+			receiver.setDaemon(true);
+		}
+
+		private void receive(BiConsumer<Transport, String> onReceive) {
+			MappedRing.Backoff backoff = new MappedRing.Backoff(Long.MAX_VALUE);
+			long lastScan = System.nanoTime() - SCAN_INTERVAL_IN_NANOS;
+			while (!killed) {
+				if (System.nanoTime() - lastScan >= SCAN_INTERVAL_IN_NANOS) {
+					scan();
+					lastScan = System.nanoTime();
+				}
+				boolean received = false;
+				for (MappedRing ring : inbound.values()) {
+					String payload = ring.read();
+					if (payload != null && !killed) {
+						received = true;
+						onReceive.accept(this, payload);
+					}
+				}
+				if (received) {
+					backoff.reset();
+				} else {
+					backoff.idle();
+				}
+			}
+		}
+
+		/**
+		 * Maps the rings of new senders.
+		 */
+		private void scan() {
+			try (DirectoryStream<Path> rings = Files.newDirectoryStream(inbox, "*" + RING_SUFFIX)) {
+				for (Path ring : rings) {
+					if (!inbound.containsKey(ring)) {
+						inbound.put(ring, MappedRing.map(ring, ringCapacity));
+					}
+				}
+			} catch (IOException e) {
+				// looked for again on the next scan
+			}
+		}
+
+		/**
+		 * Frees the address. The rings are closed, so their writers stop writing to them.
+		 */
+		private void cleanUp() {
+			try {
+				deleteRings(inbox);
+				closeQuietly(lockChannel);
+				Files.deleteIfExists(inbox.resolve(LOCK_FILE));
+				Files.deleteIfExists(inbox);
+			} catch (IOException e) {
+				// cleaned up by the next transport at the address
+			}
+		}
+
+		@Override
+		public String getAddress() {
+			return address;
+		}
+
+		@Override
+		public void send(String to, String payload) throws MessengerException {
+			if (to == null || payload == null) {
+				throw new IllegalArgumentException();
+			}
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was killed");
+			}
+			MappedRing ring = ringTo(to);
+			if (ring == null) {
+				return;
+			}
+			long maxWaitInNanos = Thread.currentThread() == receiver ? 0 : SEND_TIMEOUT_IN_NANOS;
+			if (!write(ring, payload.getBytes(StandardCharsets.UTF_8), maxWaitInNanos) && ring.isClosed()) {
+				// the receiver is gone; a new one at the address gets a new ring
+				outbound.remove(to, ring);
+			}
+		}
+
+		/**
+		 * Writes the payload, waiting for room in the ring for up to the given time, without its lock
+		 * @return false if the payload was not written
+		 */
+		private boolean write(MappedRing ring, byte[] payload, long maxWaitInNanos) {
+			if (payload.length > ring.getMaxPayloadSize()) {
+				return false;
+			}
+			MappedRing.Backoff backoff = null;
+			while (true) {
+				synchronized (ring) {
+					if (ring.write(payload)) {
+						return true;
+					}
+				}
+				if (maxWaitInNanos == 0 || ring.isClosed()) {
+					return false;
+				}
+				if (backoff == null) {
+					backoff = new MappedRing.Backoff(maxWaitInNanos);
+				}
+				if (!backoff.idle()) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @return the ring to the destination, or null if there is no transport at its address
+		 */
+		private MappedRing ringTo(String to) {
+			MappedRing $ = outbound.get(to);
+			if ($ != null) {
+				return $;
+			}
+			Path destination = inboxOf(to);
+			Path file = destination.resolve(fileNameOf(address) + RING_SUFFIX);
+			try {
+				if (!Files.exists(file)) {
+					// created aside and moved in whole, so the receiver never maps a partial file
+					Path created = Files.createTempFile(destination, null, ".tmp");
+					MappedRing.map(created, ringCapacity);
+					Files.move(created, file, StandardCopyOption.ATOMIC_MOVE);
+				}
+				$ = MappedRing.map(file, ringCapacity);
+			} catch (IOException e) {
+				// there is no transport at the address
+				return null;
+			}
+			MappedRing existing = outbound.putIfAbsent(to, $);
+			return existing != null ? existing : $;
+		}
+
+		@Override
+		public void kill() throws MessengerException {
+			if (killed) {
+				throw new MessengerException("transport of " + address + " was already killed");
+			}
+			killed = true;
+			// the receiver drops what it reads from now on, and stops on its next turn
+			cleanUp();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package il.ac.technion.cs.sd.msg;
+
+/**
+ * Carries payloads between addresses for a {@link ReliableMessenger}.
+ * A transport may lose, duplicate or reorder payloads; the messenger recovers from all three.
+ */
+public interface Transport {
+	/**
+	 * @return the address this transport receives on
+	 */
+	String getAddress();
+
+	/**
+	 * Sends the payload. Returns without an error if there is no one at the address.
+	 */
+	void send(String to, String payload) throws MessengerException;
+
+	/**
+	 * Stops receiving and frees the address.
+	 * @throws MessengerException if the transport was already killed
+	 */
+	void kill() throws MessengerException;
+}
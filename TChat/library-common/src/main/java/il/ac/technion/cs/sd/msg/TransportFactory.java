@@ -0,0 +1,25 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Starts the transports of {@link ReliableMessenger}s.
+ */
+@FunctionalInterface
+public interface TransportFactory {
+	/**
+	 * @param address the address to receive on
+	 * @param onReceive called with the transport and every payload received. payloads are received
+	 * one at a time, in the order the transport delivers them
+	 * @return the started transport
+	 * @throws MessengerException if the address is taken
+	 */
+	Transport start(String address, BiConsumer<Transport, String> onReceive) throws MessengerException;
+
+	/**
+	 * @return the default factory, over the messaging artifact's {@link MessengerFactory}
+	 */
+	static TransportFactory messenger() {
+		return MessengerTransport::start;
+	}
+}
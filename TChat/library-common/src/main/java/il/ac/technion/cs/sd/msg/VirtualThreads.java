@@ -0,0 +1,85 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts virtual threads (Java 21 or later) where the JVM has them. They are looked up
+ * reflectively, so the libraries still build and run on Java 8.
+ * Setting the system property {@value #PROPERTY} to true runs the threads of the libraries that
+ * wait for messages, such as receivers, dispatchers and server workers, on virtual threads,
+ * so a JVM can hold many more blocked conversations than it has platform threads for.
+ */
+final class VirtualThreads {
+	static final String PROPERTY = "il.ac.technion.cs.sd.msg.virtualThreads";
+
+	// Thread.ofVirtual(), and the name and start methods of the builder it returns; null if the JVM has no virtual threads
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method start;
+
+	static {
+		Method[] methods;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			methods = new Method[] { Thread.class.getMethod("ofVirtual"), builder.getMethod("name", String.class),
+					builder.getMethod("start", Runnable.class) };
+		} catch (ReflectiveOperationException e) {
+			methods = new Method[3];
+		}
+		ofVirtual = methods[0];
+		name = methods[1];
+		start = methods[2];
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the JVM has virtual threads
+	 */
+	static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * @return true if virtual threads were asked for with the system property, and the JVM has them
+	 */
+	static boolean isRequested() {
+		return isSupported() && Boolean.getBoolean(PROPERTY);
+	}
+
+	/**
+	 * Starts the task on a new thread: a virtual thread if asked to, or else a daemon platform thread
+	 * @param isVirtual whether to start a virtual thread
+	 * @throws UnsupportedOperationException if a virtual thread is asked for and the JVM has none
+	 */
+	static Thread start(String threadName, Runnable task, boolean isVirtual) {
+		if (!isVirtual) {
+			Thread $ = new Thread(task, threadName);
+			$.setDaemon(true);
+			$.start();
+			return $;
+		}
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+		}
+		try {
+			return (Thread)start.invoke(name.invoke(ofVirtual.invoke(null), threadName), task);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM", e);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CoalescerUnitTests {
+	private final BlockingQueue<String> transmitted = new LinkedBlockingQueue<>();
+	private final ManualTimer timer = new ManualTimer();
+	private final Coalescer coalescer = new Coalescer("a", 400, 1000, new SendWindow("b", 8, 
+			new RttEstimator(5000, 5000, 5000), Message::encode, () -> 0, transmitted::add), timer);
+	
+	/**
+	 * A timer whose tasks never run on their own, only when the test fires them
+	 */
+	private static class ManualTimer extends ScheduledThreadPoolExecutor {
+		final List<Runnable> scheduled = new ArrayList<>();
+		
+		ManualTimer() {
+			super(1);
+		}
+		
+		@Override
+		public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			scheduled.add(command);
+			// a future that can be cancelled, and never expires within the test
+			return super.schedule(() -> {}, 1, TimeUnit.DAYS);
+		}
+		
+		synchronized Runnable task(int i) {
+			return scheduled.get(i);
+		}
+	}
+	
+	@After
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+	
+	private static Message message(String content) {
+		return new Message("a", content, MessageType.NEW_MESSAGE);
+	}
+	
+	@Test(timeout = 5000)
+	public void timerOfAFlushedBatchDoesNotSendTheNextOne() throws Exception {
+		coalescer.add(message("first"), false, SendWindow.NO_DEADLINE);
+		coalescer.add(message("urgent"), true, SendWindow.NO_DEADLINE);
+		assertEquals(1, transmitted.size());
+		coalescer.add(message("next"), false, SendWindow.NO_DEADLINE);
+		assertEquals(2, timer.scheduled.size());
+		// the timer of the first batch fires late, after its batch was flushed
+		timer.task(0).run();
+		assertEquals(1, transmitted.size());
+		transmitted.take();
+		timer.task(1).run();
+		assertEquals("next", Message.decode(transmitted.take()).getContent());
+	}
+	
+	@Test(timeout = 5000)
+	public void batchIsSentWhenItsTimerFires() throws Exception {
+		coalescer.add(message("first"), false, SendWindow.NO_DEADLINE);
+		coalescer.add(message("second"), false, SendWindow.NO_DEADLINE);
+		assertEquals(0, transmitted.size());
+		assertEquals(1, timer.scheduled.size());
+		timer.task(0).run();
+		Message batch = Message.decode(transmitted.take());
+		assertEquals(MessageType.BATCH, batch.getMessageType());
+		assertEquals(2, EnvelopeCodec.unpack(batch.getContent()).size());
+		assertEquals(0, transmitted.size());
+	}
+}
@@ -0,0 +1,61 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.ReceiveWindow.Verdict;
+
+import org.junit.Test;
+
+public class DuplicateFilterUnitTests {
+	private DuplicateFilter filter = new DuplicateFilter(2, 64);
+	
+	private Message message(String from, long session, long seq, long settledUpTo) {
+		Message $ = new Message(from, "payload", MessageType.NEW_MESSAGE);
+		$.setSession(session);
+		$.setSeq(seq);
+		$.setAck(settledUpTo);
+		return $;
+	}
+	
+	@Test
+	public void retransmittedMessageIsRecognizedAndCounted() {
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 1, 0)));
+		assertEquals(Verdict.DUPLICATE, filter.record(message("a", 1, 1, 0)));
+		assertEquals(1, filter.getDuplicatesDropped());
+	}
+	
+	@Test
+	public void messageAfterGapIsRecognizedAndGapIsFilledLater() {
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 2, 0)));
+		assertEquals(0, filter.receivedUpTo(message("a", 1, 2, 0)));
+		assertEquals(Verdict.DUPLICATE, filter.record(message("a", 1, 2, 0)));
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 1, 0)));
+		assertEquals(2, filter.receivedUpTo(message("a", 1, 1, 0)));
+	}
+	
+	@Test
+	public void messageTooFarAfterGapIsNotTracked() {
+		assertEquals(Verdict.BEYOND_WINDOW, filter.record(message("a", 1, 66, 0)));
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 66, 2)));
+	}
+	
+	@Test
+	public void sendersAreTrackedSeparately() {
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 1, 0)));
+		assertEquals(Verdict.NEW, filter.record(message("b", 1, 1, 0)));
+	}
+	
+	@Test
+	public void newSessionStartsANewStream() {
+		assertEquals(Verdict.NEW, filter.record(message("a", 1, 1, 0)));
+		assertEquals(Verdict.NEW, filter.record(message("a", 2, 1, 0)));
+	}
+	
+	@Test
+	public void forgottenSenderResumesFromTheAcknowledgedPoint() {
+		filter.record(message("a", 1, 1, 0));
+		filter.record(message("b", 1, 1, 0));
+		filter.record(message("c", 1, 1, 0));
+		assertEquals(Verdict.DUPLICATE, filter.record(message("a", 1, 1, 1)));
+	}
+}
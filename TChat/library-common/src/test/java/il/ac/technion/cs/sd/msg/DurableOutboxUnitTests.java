@@ -0,0 +1,176 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DurableOutboxUnitTests {
+	private Path directory;
+	private Path file;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("outbox-test");
+		file = directory.resolve("outbox.log");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private static Message message(String content) {
+		return new Message("a", content, MessageType.NEW_MESSAGE);
+	}
+
+	@Test
+	public void pendingMessagesSurviveReopening() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file);
+		long first = outbox.record("b", message("first \u05e9"));
+		outbox.record("c", message("second"));
+		long third = outbox.record("b", message("third"));
+		outbox.done(first);
+		outbox.close();
+
+		DurableOutbox reopened = new DurableOutbox(file);
+		List<DurableOutbox.Entry> pending = reopened.getPending();
+		assertEquals(2, pending.size());
+		assertEquals("c", pending.get(0).to);
+		assertEquals("second", Message.decode(pending.get(0).encoded).getContent());
+		assertEquals("third", Message.decode(pending.get(1).encoded).getContent());
+		assertTrue(reopened.record("b", message("fourth")) > third);
+		reopened.close();
+	}
+
+	@Test
+	public void fullLogIsCompactedToItsPendingMessages() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file, 256, DurableOutbox.DEFAULT_FORCE_INTERVAL_IN_MS);
+		long kept = outbox.record("b", message("kept"));
+		for (int i = 0; i < 100; i++){
+			outbox.done(outbox.record("b", message("m" + i)));
+		}
+		assertEquals(1, outbox.getPendingCount());
+		// closing waits for the compactions queued on the thread of the outbox
+		outbox.close();
+		assertTrue(outbox.getCompactions() > 1);
+
+		DurableOutbox reopened = new DurableOutbox(file);
+		assertEquals(kept, reopened.getPending().get(0).id);
+		assertEquals(1, reopened.getPendingCount());
+		reopened.close();
+	}
+
+	@Test
+	public void recordLargerThanTheLogGrowsItInPlace() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file, 256, DurableOutbox.DEFAULT_FORCE_INTERVAL_IN_MS);
+		long small = outbox.record("b", message("small"));
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; i++){
+			content.append('x');
+		}
+		long large = outbox.record("b", message(content.toString()));
+		assertTrue(Files.size(file) > 1000);
+		outbox.close();
+		// the log that grew is compacted once, on the thread of the outbox, besides when it was opened
+		assertEquals(2, outbox.getCompactions());
+
+		DurableOutbox reopened = new DurableOutbox(file);
+		assertEquals(small, reopened.getPending().get(0).id);
+		assertEquals(large, reopened.getPending().get(1).id);
+		assertEquals(content.toString(), Message.decode(reopened.getPending().get(1).encoded).getContent());
+		reopened.close();
+	}
+
+	@Test
+	public void donesMarkedLaterAreKeptWhenClosing() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file, 256, DurableOutbox.DEFAULT_FORCE_INTERVAL_IN_MS);
+		long kept = outbox.record("b", message("kept"));
+		for (int i = 0; i < 100; i++){
+			outbox.doneLater(outbox.record("b", message("m" + i)));
+		}
+		outbox.close();
+
+		DurableOutbox reopened = new DurableOutbox(file);
+		assertEquals(1, reopened.getPendingCount());
+		assertEquals(kept, reopened.getPending().get(0).id);
+		reopened.close();
+	}
+
+	@Test
+	public void routesSurviveCompactionAndReopening() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file, 256, DurableOutbox.DEFAULT_FORCE_INTERVAL_IN_MS);
+		outbox.recordRoute("alice", "gateway");
+		outbox.recordRoute("bob", "gateway");
+		// bob now sends from an address of his own
+		outbox.recordRoute("bob", "bob");
+		for (int i = 0; i < 100; i++){
+			outbox.done(outbox.record("b", message("m" + i)));
+		}
+		outbox.close();
+		assertTrue(outbox.getCompactions() > 1);
+
+		DurableOutbox reopened = new DurableOutbox(file);
+		assertEquals(Collections.singletonMap("alice", "gateway"), reopened.getRoutes());
+		reopened.close();
+	}
+
+	@Test(timeout = 5000)
+	public void recordsAreForcedInBatches() throws Exception {
+		DurableOutbox outbox = new DurableOutbox(file, DurableOutbox.DEFAULT_CAPACITY, 20);
+		for (int i = 0; i < 1000; i++){
+			outbox.record("b", message("m" + i));
+		}
+		while (outbox.getForces() == 0){
+			Thread.sleep(5);
+		}
+		assertTrue(outbox.getForces() < 10);
+		outbox.close();
+	}
+
+	@Test(timeout = 10000)
+	public void unacknowledgedMessagesAreSentAgainAfterARestart() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		ReliableMessenger a = new ReliableMessenger("a", msg -> {}, 8, MessageDispatcher.boundedPool(1), network);
+		a.setOutbox(new DurableOutbox(file));
+		// there is no one at b yet, so the messages are not acknowledged
+		a.SendAsync("b", message("one"));
+		a.SendAsync("b", message("two"));
+		a.kill();
+
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ReliableMessenger b = new ReliableMessenger("b", msg -> received.add(msg.getContent()), 8,
+				MessageDispatcher.boundedPool(1), network);
+		ReliableMessenger restarted = new ReliableMessenger("a", msg -> {}, 8, MessageDispatcher.boundedPool(1), network);
+		DurableOutbox outbox = new DurableOutbox(file);
+		restarted.setOutbox(outbox);
+		restarted.flush();
+		assertEquals("one", received.poll(1, TimeUnit.SECONDS));
+		assertEquals("two", received.poll(1, TimeUnit.SECONDS));
+		assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+		// marked done once the acks complete the sends
+		while (outbox.getPendingCount() != 0){
+			Thread.sleep(5);
+		}
+		restarted.kill();
+		b.kill();
+	}
+}
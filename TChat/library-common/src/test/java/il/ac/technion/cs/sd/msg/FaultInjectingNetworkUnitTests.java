@@ -0,0 +1,93 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import il.ac.technion.cs.sd.msg.FaultInjectingNetwork.Latency;
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FaultInjectingNetworkUnitTests {
+	private static List<String> receivedUnder(long seed, int count) throws Exception {
+		FaultInjectingNetwork network = new FaultInjectingNetwork(new LoopbackNetwork(), seed);
+		network.setLossRate(0.2);
+		network.setDuplicationRate(0.1);
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport b = network.start("b", (t, payload) -> received.add(payload));
+		for (int i = 0; i < count; i++){
+			a.send("b", Integer.toString(i));
+		}
+		List<String> $ = new ArrayList<>();
+		for (String payload = received.poll(200, TimeUnit.MILLISECONDS); payload != null;
+				payload = received.poll(200, TimeUnit.MILLISECONDS)){
+			$.add(payload);
+		}
+		a.kill();
+		b.kill();
+		return $;
+	}
+
+	@Test(timeout = 5000)
+	public void sameSeedInjectsSameFaults() throws Exception {
+		List<String> first = receivedUnder(7, 500);
+		assertEquals(first, receivedUnder(7, 500));
+		assertFalse(first.equals(receivedUnder(8, 500)));
+		assertTrue(first.size() < 500);
+	}
+
+	@Test(timeout = 5000)
+	public void heldBackPayloadsAreOvertaken() throws Exception {
+		FaultInjectingNetwork network = new FaultInjectingNetwork(new LoopbackNetwork(), 1);
+		network.setReordering(0.5, 50);
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		network.start("b", (t, payload) -> received.add(payload));
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 20; i++){
+			sent.add(Integer.toString(i));
+			a.send("b", Integer.toString(i));
+		}
+		List<String> arrived = new ArrayList<>();
+		while (arrived.size() < sent.size()){
+			arrived.add(received.take());
+		}
+		assertTrue(network.getReordered() > 0);
+		assertFalse(sent.equals(arrived));
+	}
+
+	@Test(timeout = 20000)
+	public void messengersDeliverEverythingOverABadNetwork() throws Exception {
+		FaultInjectingNetwork network = new FaultInjectingNetwork(new LoopbackNetwork(), 42);
+		network.setLossRate(0.1);
+		network.setDuplicationRate(0.05);
+		network.setReordering(0.05, 10);
+		network.setLatency(Latency.uniform(0, 2));
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ReliableMessenger a = new ReliableMessenger("a", msg -> {}, 8, MessageDispatcher.boundedPool(1), network);
+		ReliableMessenger b = new ReliableMessenger("b", msg -> received.add(msg.getContent()), 8,
+				MessageDispatcher.boundedPool(1), network);
+		b.setOrderedDelivery(true);
+		int count = 300;
+		for (int i = 0; i < count; i++){
+			a.Send("b", new Message("a", "m" + i, MessageType.NEW_MESSAGE));
+		}
+		a.flush();
+		for (int i = 0; i < count; i++){
+			assertEquals("m" + i, received.take());
+		}
+		assertEquals(count, b.getMessagesReceived());
+		assertTrue(a.getRetransmissions() > 0);
+		assertTrue(network.getLost() > 0);
+		a.kill();
+		b.kill();
+	}
+}
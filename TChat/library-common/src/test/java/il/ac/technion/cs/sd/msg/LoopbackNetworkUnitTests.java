@@ -0,0 +1,56 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LoopbackNetworkUnitTests {
+	@Test(timeout = 5000)
+	public void payloadsArriveInOrderAndUncopied() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport b = network.start("b", (t, payload) -> received.add(payload));
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 1000; i++){
+			String payload = "payload " + i;
+			sent.add(payload);
+			a.send("b", payload);
+		}
+		for (String payload : sent){
+			assertSame(payload, received.take());
+		}
+		a.kill();
+		b.kill();
+	}
+
+	@Test(expected = MessengerException.class)
+	public void addressIsUniquePerNetwork() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		network.start("a", (t, payload) -> {});
+		network.start("a", (t, payload) -> {});
+	}
+
+	@Test(timeout = 5000)
+	public void killedAddressCanBeReused() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		network.start("a", (t, payload) -> {}).kill();
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> received.add(payload));
+		network.start("b", (t, payload) -> {}).send("a", "hello");
+		assertEquals("hello", received.poll(1, TimeUnit.SECONDS));
+		a.kill();
+	}
+
+	@Test(timeout = 10000)
+	public void messengersExchangeOverLoopback() throws Exception {
+		TransportChecks.messengersExchange(new LoopbackNetwork(), () -> MessageDispatcher.boundedPool(1), 10000);
+	}
+}
@@ -0,0 +1,92 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MessageDispatcherUnitTests {
+	private MessageDispatcher dispatcher = MessageDispatcher.boundedPool(4);
+	
+	@After
+	public void teardown() {
+		dispatcher.shutdown();
+	}
+	
+	@Test(timeout=5000)
+	public void actionsOfTheSameSenderRunInDispatchOrder() throws Exception {
+		int num_senders = 3;
+		int num_actions = 1000;
+		List<List<Integer>> ran = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(num_senders * num_actions);
+		for (int s = 0; s < num_senders; s++) {
+			ran.add(Collections.synchronizedList(new ArrayList<>()));
+		}
+		for (int i = 0; i < num_actions; i++) {
+			for (int s = 0; s < num_senders; s++) {
+				List<Integer> list = ran.get(s);
+				int action = i;
+				dispatcher.dispatch("sender" + s, () -> {
+					list.add(action);
+					done.countDown();
+				});
+			}
+		}
+		done.await();
+		for (List<Integer> list : ran) {
+			for (int i = 0; i < num_actions; i++) {
+				assertEquals(i, (int)list.get(i));
+			}
+		}
+	}
+	
+	@Test(timeout=5000)
+	public void queueDepthCountsWaitingActions() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+		Runnable blocked = () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			done.countDown();
+		};
+		dispatcher.dispatch("a", blocked);
+		dispatcher.dispatch("a", done::countDown);
+		dispatcher.dispatch("a", done::countDown);
+		Thread.sleep(50);
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(2, dispatcher.getQueueDepth("a"));
+		assertEquals(1, dispatcher.getActiveSenders());
+		release.countDown();
+		done.await(1, TimeUnit.SECONDS);
+		Thread.sleep(50);
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(3, dispatcher.getDispatchedCount());
+	}
+	
+	@Test
+	public void callerRunsDispatcherRunsOnTheDispatchingThread() {
+		MessageDispatcher callerRuns = MessageDispatcher.callerRuns();
+		List<Thread> ran = new ArrayList<>();
+		callerRuns.dispatch("a", () -> ran.add(Thread.currentThread()));
+		assertEquals(Collections.singletonList(Thread.currentThread()), ran);
+	}
+	
+	@Test
+	public void actionsDispatchedAfterShutdownAreDropped() {
+		dispatcher.shutdown();
+		dispatcher.dispatch("late", () -> {});
+		dispatcher.dispatch("late", () -> {});
+		assertEquals(2, dispatcher.getDroppedCount());
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(0, dispatcher.getActiveSenders());
+	}
+}
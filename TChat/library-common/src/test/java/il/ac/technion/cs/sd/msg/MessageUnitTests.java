@@ -0,0 +1,184 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageUnitTests {
+	
+	@Test
+	public void messageSurvivesJsonRoundTrip() {
+		Message msg = new Message("client", "Hi", MessageType.REPLIED_MESSAGE);
+		msg.setSeq(3);
+		msg.setSession(7);
+		msg.setAck(2);
+		Message decoded = Message.FromJsonString(msg.ToJsonString());
+		assertEquals(msg, decoded);
+		assertEquals(MessageType.REPLIED_MESSAGE, decoded.getMessageType());
+		assertEquals(3, decoded.getSeq());
+		assertEquals(7, decoded.getSession());
+		assertEquals(2, decoded.getAck());
+	}
+	
+	@Test
+	public void jsonIsCompact() {
+		String json = new Message("client", "Hi", MessageType.NEW_MESSAGE).ToJsonString();
+		assertFalse(json.contains("\n"));
+		assertFalse(json.contains(" "));
+	}
+	
+	@Test
+	public void prettyPrintedJsonOfOlderVersionsIsDecoded() {
+		String json = "{\n  \"from\" : \"client\",\n  \"content\" : \"Hi\",\n  \"messageType\" : \"NEW_MESSAGE\"\n}";
+		Message decoded = Message.FromJsonString(json);
+		assertEquals(new Message("client", "Hi", MessageType.NEW_MESSAGE), decoded);
+		assertEquals(0, decoded.getSeq());
+	}
+	
+	@Test
+	public void unknownFieldsOfNewerVersionsAreIgnored() {
+		String json = "{\"from\":\"client\",\"content\":\"Hi\",\"messageType\":\"NEW_MESSAGE\",\"somethingNew\":1}";
+		assertEquals(new Message("client", "Hi", MessageType.NEW_MESSAGE), Message.FromJsonString(json));
+	}
+	
+	@Test
+	public void messageSurvivesEnvelopeRoundTrip() {
+		Message msg = new Message("client", "<xml attr=\"1\">|~;:\n</xml>", MessageType.NEW_MESSAGE);
+		msg.setSeq(3);
+		msg.setSession(-7);
+		msg.setAck(2);
+		Message decoded = Message.decode(msg.encode());
+		assertEquals(msg, decoded);
+		assertEquals(MessageType.NEW_MESSAGE, decoded.getMessageType());
+		assertEquals(3, decoded.getSeq());
+		assertEquals(-7, decoded.getSession());
+		assertEquals(2, decoded.getAck());
+	}
+	
+	@Test
+	public void envelopeCopiesTheContentWithoutEscaping() {
+		String content = "<a b=\"c\">\"quoted\"</a>";
+		String encoded = new Message("client", content, MessageType.NEW_MESSAGE).encode();
+		assertTrue(encoded.endsWith(content));
+		assertTrue(encoded.length() < new Message("client", content, MessageType.NEW_MESSAGE).ToJsonString().length());
+	}
+	
+	@Test
+	public void acksAreRecognizedByTheirHeader() {
+		Message msg = new Message("client", "Hi", MessageType.NEW_MESSAGE);
+		msg.setSeq(5);
+		String ack = Message.ack("server", msg, 5).encode();
+		assertTrue(EnvelopeCodec.isAck(ack));
+		assertFalse(EnvelopeCodec.isAck(msg.encode()));
+		assertFalse(EnvelopeCodec.isAck(msg.ToJsonString()));
+	}
+	
+	@Test
+	public void acksAreReadFromTheirHeader() {
+		Message msg = new Message("client", "Hi", MessageType.NEW_MESSAGE);
+		msg.setSeq(5);
+		msg.setSession(Long.MIN_VALUE);
+		EnvelopeCodec.Ack ack = EnvelopeCodec.decodeAck(Message.ack("server", msg, 4).encode());
+		assertEquals("server", ack.from);
+		assertEquals(Long.MIN_VALUE, ack.session);
+		assertEquals(5, ack.seq);
+		assertEquals(4, ack.receivedUpTo);
+		// tags of newer versions are skipped
+		assertEquals("server", EnvelopeCodec.decodeAck("~1A-7;2;1;x3:abc|6:server").from);
+		assertNull(EnvelopeCodec.decodeAck(msg.encode()));
+		assertNull(EnvelopeCodec.decodeAck("~1A1;2"));
+		assertNull(EnvelopeCodec.decodeAck("~1Azzzzzzzzzzzzzzzz;2;1;|6:server"));
+	}
+	
+	@Test
+	public void decodeAcceptsJsonOfOlderVersions() {
+		Message msg = new Message("client", "Hi", MessageType.REPLIED_MESSAGE);
+		assertEquals(msg, Message.decode(msg.ToJsonString()));
+	}
+	
+	@Test
+	public void unknownTagsOfNewerVersionsAreSkipped() {
+		Message decoded = Message.decode("~1N1;2;1;x3:abcw0:|6:clientHi");
+		assertEquals(new Message("client", "Hi", MessageType.NEW_MESSAGE), decoded);
+		assertEquals(2, decoded.getSeq());
+	}
+	
+	@Test
+	public void envelopesOfUnknownVersionsAreNotDecoded() {
+		assertNull(Message.decode("~2N1;2;1;|6:clientHi"));
+		assertNull(Message.decode("~1N1;2"));
+	}
+	
+	@Test
+	public void batchKeepsTheOrderOfItsMessages() {
+		List<Message> messages = Arrays.asList(
+				new Message("client", "first", MessageType.NEW_MESSAGE),
+				new Message("client", "", MessageType.NEW_MESSAGE),
+				new Message("client", "third:|~", MessageType.REPLIED_MESSAGE));
+		Message batch = new Message("client", EnvelopeCodec.pack(messages), MessageType.BATCH);
+		List<Message> unpacked = EnvelopeCodec.unpack(Message.decode(batch.encode()).getContent());
+		assertEquals(messages, unpacked);
+		assertEquals(MessageType.REPLIED_MESSAGE, unpacked.get(2).getMessageType());
+	}
+	
+	@Test
+	public void requestIdsSurviveEnvelopeRoundTrip() {
+		Message msg = new Message("server", "reply", MessageType.REPLIED_MESSAGE);
+		msg.setRequestId(12345);
+		msg.setInReplyTo(77);
+		Message decoded = Message.decode(msg.encode());
+		assertEquals(12345, decoded.getRequestId());
+		assertEquals(77, decoded.getInReplyTo());
+		assertEquals(0, Message.decode(new Message("a", "b", MessageType.NEW_MESSAGE).encode()).getRequestId());
+	}
+	
+	@Test
+	public void prioritySurvivesEnvelopeRoundTrip() {
+		Message msg = new Message("client", "connect", MessageType.NEW_MESSAGE);
+		assertEquals(Priority.BULK, Message.decode(msg.encode()).getPriority());
+		msg.setPriority(Priority.CONTROL);
+		assertEquals(Priority.CONTROL, Message.decode(msg.encode()).getPriority());
+	}
+	
+	@Test
+	public void routingFieldsSurviveEnvelopeRoundTrip() {
+		Message msg = new Message("alice", "hi", MessageType.NEW_MESSAGE);
+		Message decoded = Message.decode(msg.encode());
+		assertNull(decoded.getTo());
+		assertNull(decoded.getVia());
+		msg.setTo("bob");
+		msg.setVia("gateway:1");
+		decoded = Message.decode(msg.encode());
+		assertEquals("bob", decoded.getTo());
+		assertEquals("gateway:1", decoded.getVia());
+		assertEquals("hi", decoded.getContent());
+	}
+	
+	@Test
+	public void largeContentIsCompressed() {
+		StringBuilder xml = new StringBuilder("<list>");
+		for (int i = 0; i < 200; i++){
+			xml.append("<string>room ").append(i).append("</string>");
+		}
+		String content = xml.append("</list>").toString();
+		Message msg = new Message("server", content, MessageType.REPLIED_MESSAGE);
+		String encoded = EnvelopeCodec.encode(msg, 1024);
+		assertTrue(encoded.length() < content.length() / 2);
+		assertEquals(msg, Message.decode(encoded));
+	}
+	
+	@Test
+	public void smallContentIsNotCompressed() {
+		Message msg = new Message("server", "<small/>", MessageType.NEW_MESSAGE);
+		assertEquals(msg.encode(), EnvelopeCodec.encode(msg, 1024));
+		assertTrue(EnvelopeCodec.encode(msg, 1).endsWith("<small/>"));
+	}
+}
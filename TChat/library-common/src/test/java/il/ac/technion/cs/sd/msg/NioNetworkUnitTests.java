@@ -0,0 +1,107 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NioNetworkUnitTests {
+	private final NioNetwork network = new NioNetwork();
+
+	@After
+	public void shutdown() {
+		network.shutdown();
+	}
+
+	private static String longString(int length) {
+		StringBuilder $ = new StringBuilder();
+		for (int i = 0; $.length() < length; i++){
+			$.append(i).append("\u05e9,");
+		}
+		return $.substring(0, length);
+	}
+
+	@Test(timeout = 5000)
+	public void payloadsArriveInOrder() throws Exception {
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		network.start("b", (t, payload) -> received.add(payload));
+		assertNotNull(network.getSocketAddress("b"));
+		for (int i = 0; i < 5000; i++){
+			a.send("b", "payload " + i);
+		}
+		for (int i = 0; i < 5000; i++){
+			assertEquals("payload " + i, received.take());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void framesLargerThanABufferArriveWhole() throws Exception {
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		network.start("b", (t, payload) -> received.add(payload));
+		String large = longString(3 * NioNetwork.BUFFER_SIZE);
+		a.send("b", "small");
+		a.send("b", large);
+		a.send("b", "");
+		a.send("b", "small again");
+		assertEquals("small", received.take());
+		assertEquals(large, received.take());
+		assertEquals("", received.take());
+		assertEquals("small again", received.take());
+	}
+
+	@Test(timeout = 5000)
+	public void smallFramesShareTheBufferOfTheirConnection() throws Exception {
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport b = network.start("b", (t, payload) -> received.add(payload));
+		for (int i = 0; i < 5000; i++){
+			a.send("b", "ack " + i);
+		}
+		for (int i = 0; i < 5000; i++){
+			received.take();
+		}
+		// one to write from and one to read into, rather than a buffer per frame
+		assertTrue(network.getAllocatedBuffers() <= 2);
+		a.kill();
+		b.kill();
+		// the buffers are returned once the connections are closed
+		while (network.getPooledBuffers() != network.getAllocatedBuffers()){
+			Thread.sleep(5);
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void payloadsToUnknownAddressesAreLost() throws Exception {
+		network.start("a", (t, payload) -> {}).send("nobody", "hello");
+	}
+
+	@Test(expected = MessengerException.class)
+	public void addressIsUniquePerNetwork() throws Exception {
+		network.start("a", (t, payload) -> {});
+		network.start("a", (t, payload) -> {});
+	}
+
+	@Test(timeout = 5000)
+	public void killedAddressIsRemovedFromTheDirectory() throws Exception {
+		network.start("a", (t, payload) -> {}).kill();
+		assertNull(network.getSocketAddress("a"));
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		network.start("a", (t, payload) -> received.add(payload));
+		network.start("b", (t, payload) -> {}).send("a", "hello");
+		assertEquals("hello", received.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 10000)
+	public void messengersExchangeOverSockets() throws Exception {
+		TransportChecks.messengersExchange(network, () -> MessageDispatcher.boundedPool(1), 2000);
+	}
+}
@@ -0,0 +1,102 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReassemblerUnitTests {
+	private static String longString(int length) {
+		StringBuilder $ = new StringBuilder();
+		for (int i = 0; $.length() < length; i++){
+			$.append(i).append(',');
+		}
+		return $.substring(0, length);
+	}
+	
+	@Test
+	public void fragmentsAreJoinedInAnyOrder() {
+		String whole = longString(1000);
+		List<Message> fragments = Reassembler.fragment("a", whole, 100, 1);
+		assertEquals(25, fragments.size());
+		Collections.reverse(fragments);
+		Reassembler reassembler = new Reassembler();
+		String joined = null;
+		for (Message fragment : fragments){
+			assertNull(joined);
+			joined = reassembler.add("a", 1, fragment.getContent());
+		}
+		assertEquals(whole, joined);
+		assertEquals(0, reassembler.getPartials());
+	}
+	
+	@Test
+	public void fragmentsOfDifferentSendersAreNotMixed() {
+		Reassembler reassembler = new Reassembler();
+		List<Message> fromA = Reassembler.fragment("a", longString(20), 70, 1);
+		List<Message> fromB = Reassembler.fragment("b", "bbbbbbbbbbbbbbbbbbbb", 70, 1);
+		assertEquals(2, fromA.size());
+		reassembler.add("a", 1, fromA.get(0).getContent());
+		reassembler.add("b", 1, fromB.get(0).getContent());
+		assertEquals("bbbbbbbbbbbbbbbbbbbb", reassembler.add("b", 1, fromB.get(1).getContent()));
+		assertEquals(longString(20), reassembler.add("a", 1, fromA.get(1).getContent()));
+	}
+	
+	@Test
+	public void oldestIncompleteMessageIsDiscardedWhenFull() {
+		Reassembler reassembler = new Reassembler(2, 1000);
+		for (long id = 1; id <= 3; id++){
+			reassembler.add("a", 1, Reassembler.fragment("a", longString(20), 70, id).get(0).getContent());
+		}
+		assertEquals(2, reassembler.getPartials());
+		assertEquals(1, reassembler.getDiscarded());
+		// the discarded message starts over, and cannot be completed by its last fragment alone
+		assertNull(reassembler.add("a", 1, Reassembler.fragment("a", longString(20), 70, 1).get(1).getContent()));
+	}
+	
+	@Test
+	public void fragmentsFitTheirMaximalSizeInTheirEnvelope() {
+		for (Message fragment : Reassembler.fragment("someone", longString(5000), 200, Long.MAX_VALUE)){
+			fragment.setSession(Long.MIN_VALUE);
+			fragment.setSeq(Long.MAX_VALUE);
+			fragment.setAck(Long.MAX_VALUE);
+			assertTrue(EnvelopeCodec.encode(fragment).length() <= 200);
+		}
+	}
+	
+	@Test
+	public void countOfFragmentsIsBoundedBeforeAnythingIsKept() {
+		Reassembler reassembler = new Reassembler();
+		assertNull(reassembler.add("a", 1, "1;0;" + Integer.toString(Integer.MAX_VALUE, Character.MAX_RADIX) + ";x"));
+		assertEquals(0, reassembler.getPartials());
+	}
+	
+	@Test
+	public void messageLongerThanTheBoundIsNotKept() {
+		Reassembler reassembler = new Reassembler(4, 30);
+		assertNull(reassembler.add("a", 1, "2;0;2;" + longString(10)));
+		assertNull(reassembler.add("a", 1, "1;0;2;" + longString(21)));
+		// the other message is discarded to make room for the slice
+		assertEquals(1, reassembler.getDiscarded());
+		assertNull(reassembler.add("a", 1, "1;1;2;" + longString(21)));
+		assertEquals(0, reassembler.getPartials());
+		assertEquals(2, reassembler.getDiscarded());
+	}
+	
+	@Test
+	public void fragmentsOfARestartedSenderAreNotMixedWithItsPreviousSession() {
+		Reassembler reassembler = new Reassembler();
+		List<Message> previous = Reassembler.fragment("a", "xxxxxxxxxxxxxxxxxxxx", 70, 1);
+		List<Message> current = Reassembler.fragment("a", longString(20), 70, 1);
+		reassembler.add("a", 1, previous.get(0).getContent());
+		assertNull(reassembler.add("a", 2, current.get(1).getContent()));
+		// the message of the previous session was discarded, as its sender was restarted
+		assertEquals(1, reassembler.getPartials());
+		assertEquals(1, reassembler.getDiscarded());
+		assertEquals(longString(20), reassembler.add("a", 2, current.get(0).getContent()));
+	}
+}
@@ -1,12 +1,20 @@
 package il.ac.technion.cs.sd.msg;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import il.ac.technion.cs.sd.msg.Message.MessageType;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.junit.After;
@@ -61,6 +69,62 @@ public class ReliableMessengerUnitTests {
 		assertEquals(incomingMessages.size(), num_tries);
 	}
 	
+	@Test(timeout=10000)
+	public void windowedSendNeverFailsToSendMessages() throws Exception {
+		ReliableMessenger m1 = new ReliableMessenger("windowed", x -> {}, 16);
+		messengers.add(m1);
+		ReliableMessenger m2 = startAndAddToList();
+		int num_tries = 200;
+		Set<String> expected = new HashSet<>();
+		for (int i = 0; i < num_tries; i++){
+			Message msg = new Message(m1.getAddress(), "Message #" + i, MessageType.NEW_MESSAGE);
+			expected.add(msg.getContent());
+			m1.Send(m2.getAddress(), msg);
+		}
+		m1.flush();
+		
+		Thread.sleep(10);
+		
+		Set<String> received = new HashSet<>();
+		for (Message msg : incomingMessages){
+			received.add(msg.getContent());
+		}
+		assertEquals(expected, received);
+	}
+	
+	@Test(timeout=10000)
+	public void concurrentSendsToSameDestinationAreAllDelivered() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		ReliableMessenger m2 = startAndAddToList();
+		int num_threads = 4;
+		int num_tries = 50;
+		Set<String> expected = new HashSet<>();
+		Collection<Thread> senders = new ArrayList<>();
+		for (int t = 0; t < num_threads; t++){
+			for (int i = 0; i < num_tries; i++){
+				expected.add("Thread #" + t + " message #" + i);
+			}
+			final int thread = t;
+			senders.add(new Thread(() -> {
+				for (int i = 0; i < num_tries; i++){
+					m1.Send(m2.getAddress(), new Message(m1.getAddress(), "Thread #" + thread + " message #" + i, MessageType.NEW_MESSAGE));
+				}
+			}));
+		}
+		senders.forEach(Thread::start);
+		for (Thread sender : senders){
+			sender.join();
+		}
+		
+		Thread.sleep(10);
+		
+		Set<String> received = new HashSet<>();
+		for (Message msg : incomingMessages){
+			received.add(msg.getContent());
+		}
+		assertEquals(expected, received);
+	}
+	
 	@Test(timeout=1000)
 	public void clientLibraryForwardsNewMessagesFromServerToSuppliedConsumer() throws Exception {
 		ReliableMessenger m1 = startAndAddToList();
@@ -72,6 +136,36 @@ public class ReliableMessengerUnitTests {
 		assertEquals(msg, incomingMessages.take());
 	}
 	
+	@Test(timeout=1000, expected= DeliveryFailedException.class)
+	public void sendGivesUpAfterMaxRetries() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		m1.setMaxRetries(2);
+		Message msg = new Message(m1.getAddress(), "Hi", MessageType.NEW_MESSAGE);
+		m1.Send("nobody", msg);
+	}
+	
+	@Test(timeout=10000)
+	public void coalescedSendsAreDeliveredInOrder() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		m1.setCoalescing(5, 1000);
+		ReliableMessenger m2 = startAndAddToList();
+		m2.setOrderedDelivery(true);
+		int num_tries = 200;
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < num_tries; i++){
+			Message msg = new Message(m1.getAddress(), "Message #" + i, MessageType.NEW_MESSAGE);
+			expected.add(msg.getContent());
+			m1.Send(m2.getAddress(), msg);
+		}
+		m1.flush();
+		
+		List<String> received = new ArrayList<>();
+		for (int i = 0; i < num_tries; i++){
+			received.add(incomingMessages.take().getContent());
+		}
+		assertEquals(expected, received);
+	}
+	
 	@Test(expected= IllegalArgumentException.class)
 	public void SendFailsOnInvalidTo() throws Exception {
 		ReliableMessenger m1 = startAndAddToList();
@@ -101,4 +195,156 @@ public class ReliableMessengerUnitTests {
 		String reply = m1.SendAndAwaitReply(mForReply.getAddress(), msg);
 		assertEquals("boo", reply);
 	}
+	
+	@Test(timeout=5000)
+	public void asyncRepliesCompleteTheWaitingFuturesInOrder() throws Exception {
+		ReliableMessenger m1 = startAndAddToList(x -> {});
+		ReliableMessenger m2 = startAndAddToList(received -> {
+			Message reply = new Message(mForReply.getAddress(), "re: " + received.getContent(), MessageType.REPLIED_MESSAGE);
+			new Thread(() -> mForReply.Send(received.getFrom(), reply)).start();
+		});
+		mForReply = m2;
+		m2.setOrderedDelivery(true);
+		
+		List<CompletableFuture<String>> replies = new ArrayList<>();
+		for (int i = 0; i < 5; i++){
+			Message msg = new Message(m1.getAddress(), "#" + i, MessageType.NEW_MESSAGE);
+			replies.add(m1.SendAndAwaitReplyAsync(m2.getAddress(), msg));
+		}
+		for (CompletableFuture<String> reply : replies){
+			assertTrue(reply.get().startsWith("re: #"));
+		}
+	}
+	
+	@Test(timeout=5000)
+	public void sendAsyncFailsAfterMaxRetries() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		m1.setMaxRetries(2);
+		Message msg = new Message(m1.getAddress(), "Hi", MessageType.NEW_MESSAGE);
+		CompletableFuture<Void> acked = m1.SendAsync("nobody", msg);
+		try {
+			acked.join();
+			fail();
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof DeliveryFailedException);
+		}
+	}
+	
+	@Test(timeout=5000, expected= DeliveryFailedException.class)
+	public void sendGivesUpAtItsDeadline() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		Message msg = new Message(m1.getAddress(), "Hi", MessageType.NEW_MESSAGE);
+		m1.Send("nobody", msg, 50);
+	}
+	
+	@Test(timeout=5000)
+	public void peerFailureListenerIsToldAboutDeadPeers() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		BlockingQueue<String> failedPeers = new LinkedBlockingQueue<>();
+		m1.setPeerFailureListener(failedPeers::add);
+		m1.setDefaultDeadline(50);
+		m1.SendAsync("nobody", new Message(m1.getAddress(), "Hi", MessageType.NEW_MESSAGE));
+		assertEquals("nobody", failedPeers.take());
+	}
+	
+	@Test(timeout=5000)
+	public void repliesOutOfOrderCompleteTheirOwnRequests() throws Exception {
+		List<Message> requests = new ArrayList<>();
+		ReliableMessenger m1 = startAndAddToList(x -> {});
+		mForReply = startAndAddToList(received -> {
+			synchronized (requests){
+				requests.add(received);
+				if (requests.size() < 3){
+					return;
+				}
+			}
+			// replies in reverse order, each naming its request
+			new Thread(() -> {
+				for (int i = requests.size() - 1; i >= 0; i--){
+					Message request = requests.get(i);
+					Message reply = new Message(mForReply.getAddress(), "re: " + request.getContent(), MessageType.REPLIED_MESSAGE);
+					reply.setInReplyTo(request.getRequestId());
+					mForReply.Send(request.getFrom(), reply);
+				}
+			}).start();
+		});
+		
+		List<CompletableFuture<String>> replies = new ArrayList<>();
+		for (int i = 0; i < 3; i++){
+			Message msg = new Message(m1.getAddress(), "#" + i, MessageType.NEW_MESSAGE);
+			replies.add(m1.SendAndAwaitReplyAsync(mForReply.getAddress(), msg));
+		}
+		for (int i = 0; i < 3; i++){
+			assertEquals("re: #" + i, replies.get(i).get());
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void longMessagesAreSentInFragments() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		m1.setMaxFragmentSize(200);
+		ReliableMessenger m2 = startAndAddToList();
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 500; i++){
+			content.append("<room>").append(i).append("</room>");
+		}
+		Message msg = new Message(m1.getAddress(), content.toString(), MessageType.NEW_MESSAGE);
+		m1.Send(m2.getAddress(), msg);
+		assertEquals(content.toString(), incomingMessages.take().getContent());
+	}
+	
+	@Test(timeout=10000)
+	public void fragmentsSentOnBehalfOfAnIdentityAreAckedToTheirEndpoint() throws Exception {
+		ReliableMessenger endpoint = startAndAddToList();
+		endpoint.setMaxFragmentSize(200);
+		ReliableMessenger m2 = startAndAddToList();
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100; i++){
+			content.append("<room>").append(i).append("</room>");
+		}
+		Message msg = new Message("alice", content.toString(), MessageType.NEW_MESSAGE);
+		// fragments acked to the identity rather than the endpoint would miss the deadline
+		endpoint.Send(m2.getAddress(), msg, 5000);
+		assertEquals(content.toString(), incomingMessages.take().getContent());
+	}
+	
+	@Test(timeout=5000)
+	public void refusedMessagesAreDeliveredOnceAdmitted() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		ReliableMessenger m2 = startAndAddToList();
+		AtomicInteger refusals = new AtomicInteger(3);
+		m2.setAdmission(msg -> refusals.getAndDecrement() <= 0);
+		Message msg = new Message(m1.getAddress(), "Hi", MessageType.NEW_MESSAGE);
+		m1.Send(m2.getAddress(), msg);
+		assertEquals(msg, incomingMessages.take());
+		assertTrue(m1.getRetransmissions() >= 3);
+	}
+	
+	private static void assertGivenUp(CompletableFuture<Void> sent) {
+		try {
+			sent.join();
+			fail();
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof DeliveryFailedException);
+		}
+	}
+	
+	@Test(timeout=5000)
+	public void pendingSendsFailWhenTheMessengerIsKilled() throws Exception {
+		ReliableMessenger m1 = startAndAddToList();
+		ReliableMessenger coalescing = startAndAddToList();
+		coalescing.setCoalescing(60000, 100000);
+		CompletableFuture<Void> inFlight = m1.SendAsync("nobody", new Message(m1.getAddress(), "#1", MessageType.NEW_MESSAGE));
+		// waits for room in the window, which the first message holds
+		CompletableFuture<CompletableFuture<Void>> waiting = CompletableFuture.supplyAsync(
+				() -> m1.SendAsync("nobody", new Message(m1.getAddress(), "#2", MessageType.NEW_MESSAGE)));
+		CompletableFuture<Void> batched = coalescing.SendAsync("nobody", 
+				new Message(coalescing.getAddress(), "#3", MessageType.NEW_MESSAGE));
+		m1.kill();
+		coalescing.kill();
+		assertGivenUp(inFlight);
+		assertGivenUp(waiting.join());
+		assertGivenUp(batched);
+		assertGivenUp(m1.SendAsync("nobody", new Message(m1.getAddress(), "#4", MessageType.NEW_MESSAGE)));
+	}
 }
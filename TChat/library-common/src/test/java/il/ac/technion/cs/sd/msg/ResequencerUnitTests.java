@@ -0,0 +1,67 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ResequencerUnitTests {
+	private final List<String> delivered = new ArrayList<>();
+	private Resequencer resequencer = new Resequencer(2, msg -> delivered.add(msg.getFrom() + msg.getSeq()));
+	
+	private Message message(String from, long session, long seq, long settledUpTo) {
+		Message $ = new Message(from, "payload", MessageType.NEW_MESSAGE);
+		$.setSession(session);
+		$.setSeq(seq);
+		$.setAck(settledUpTo);
+		return $;
+	}
+	
+	@Test
+	public void messagesInOrderAreDeliveredAtOnce() {
+		resequencer.receive(message("a", 1, 1, 0));
+		resequencer.receive(message("a", 1, 2, 0));
+		assertEquals(Arrays.asList("a1", "a2"), delivered);
+	}
+	
+	@Test
+	public void messageAfterGapIsHeldUntilGapIsFilled() {
+		resequencer.receive(message("a", 1, 2, 0));
+		resequencer.receive(message("a", 1, 3, 0));
+		assertEquals(Arrays.asList(), delivered);
+		resequencer.receive(message("a", 1, 1, 0));
+		assertEquals(Arrays.asList("a1", "a2", "a3"), delivered);
+	}
+	
+	@Test
+	public void sendersAreOrderedIndependently() {
+		resequencer.receive(message("a", 1, 2, 0));
+		resequencer.receive(message("b", 1, 1, 0));
+		assertEquals(Arrays.asList("b1"), delivered);
+	}
+	
+	@Test
+	public void gapTheSenderGaveUpOnIsSkipped() {
+		resequencer.receive(message("a", 1, 2, 0));
+		resequencer.receive(message("a", 1, 3, 1));
+		assertEquals(Arrays.asList("a2", "a3"), delivered);
+	}
+	
+	@Test
+	public void firstMessageOfASenderStartsFromItsAck() {
+		resequencer.receive(message("a", 1, 8, 7));
+		assertEquals(Arrays.asList("a8"), delivered);
+	}
+	
+	@Test
+	public void heldMessagesOfAForgottenSenderAreReleased() {
+		resequencer.receive(message("a", 1, 2, 0));
+		resequencer.receive(message("b", 1, 1, 0));
+		resequencer.receive(message("c", 1, 1, 0));
+		assertEquals(Arrays.asList("b1", "a2", "c1"), delivered);
+	}
+}
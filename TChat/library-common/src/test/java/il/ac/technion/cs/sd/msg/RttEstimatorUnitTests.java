@@ -0,0 +1,52 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RttEstimatorUnitTests {
+	private RttEstimator estimator = new RttEstimator(20, 5, 1000);
+	
+	private static long ms(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	@Test
+	public void initialTimeoutIsUsedBeforeFirstSample() {
+		assertEquals(ms(20), estimator.getTimeout());
+	}
+	
+	@Test
+	public void firstSampleSetsTimeoutToThreeRoundTrips() {
+		estimator.sample(ms(100));
+		assertEquals(ms(300), estimator.getTimeout());
+	}
+	
+	@Test
+	public void steadyRoundTripsShrinkTheTimeoutTowardsTheRoundTrip() {
+		for (int i = 0; i < 100; i++) {
+			estimator.sample(ms(100));
+		}
+		assertTrue(estimator.getTimeout() < ms(110));
+		assertTrue(estimator.getTimeout() >= ms(100));
+	}
+	
+	@Test
+	public void backoffDoublesTheTimeoutUpToTheBound() {
+		estimator.backoff();
+		assertEquals(ms(40), estimator.getTimeout());
+		for (int i = 0; i < 10; i++) {
+			estimator.backoff();
+		}
+		assertEquals(ms(1000), estimator.getTimeout());
+	}
+	
+	@Test
+	public void timeoutIsNeverBelowTheBound() {
+		estimator.sample(0);
+		assertEquals(ms(5), estimator.getTimeout());
+	}
+}
@@ -0,0 +1,34 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SendWindowUnitTests {
+	private final SendWindow window = new SendWindow("b", 8, new RttEstimator(20, 5, 2000), Message::encode, 
+			() -> 0, payload -> {});
+	
+	private static long ms(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	private void send(String content) {
+		window.send(new Message("a", content, MessageType.NEW_MESSAGE), SendWindow.NO_DEADLINE);
+	}
+	
+	@Test
+	public void timeoutIsBackedOffOncePerExpiryOfTheOldestMessage() {
+		send("first");
+		window.retransmitExpired(System.nanoTime() + ms(25), Integer.MAX_VALUE);
+		assertEquals(ms(40), window.getRetransmitTimeout());
+		// sent later, so it expires on a later tick, in the same loss episode
+		send("second");
+		window.retransmitExpired(System.nanoTime() + ms(45), Integer.MAX_VALUE);
+		assertEquals(2, window.getRetransmissions());
+		assertEquals(ms(40), window.getRetransmitTimeout());
+	}
+}
@@ -0,0 +1,133 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedMemoryNetworkUnitTests {
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("shm-test");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void payloadsArriveInOrderAcrossWraps() throws Exception {
+		// a small ring, so the payloads wrap around it many times
+		SharedMemoryNetwork network = new SharedMemoryNetwork(directory, 256);
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport b = network.start("b", (t, payload) -> received.add(payload));
+		for (int i = 0; i < 2000; i++){
+			a.send("b", "payload \u05e9 " + i);
+		}
+		for (int i = 0; i < 2000; i++){
+			assertEquals("payload \u05e9 " + i, received.take());
+		}
+		a.kill();
+		b.kill();
+	}
+
+	@Test(timeout = 5000)
+	public void payloadsTooLongForTheRingAreLost() throws Exception {
+		SharedMemoryNetwork network = new SharedMemoryNetwork(directory, 64);
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport b = network.start("b", (t, payload) -> received.add(payload));
+		a.send("b", new String(new char[100]));
+		a.send("b", "short");
+		assertEquals("short", received.take());
+		a.kill();
+		b.kill();
+	}
+
+	@Test(timeout = 5000)
+	public void receivingThreadDoesNotWaitForRoom() throws Exception {
+		SharedMemoryNetwork network = new SharedMemoryNetwork(directory, 64);
+		CountDownLatch stalled = new CountDownLatch(1);
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport a = network.start("a", (t, payload) -> {});
+		// the receiver of c stops draining its ring, which fills up after a few payloads
+		Transport c = network.start("c", (t, payload) -> {
+			try {
+				stalled.await();
+			} catch (InterruptedException e) {
+				// stop waiting
+			}
+		});
+		Transport b = network.start("b", (t, payload) -> {
+			try {
+				t.send("c", payload);
+			} catch (MessengerException e) {
+				throw new RuntimeException(e);
+			}
+			received.add(payload);
+		});
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++){
+			a.send("b", "payload " + i);
+		}
+		for (int i = 0; i < 20; i++){
+			assertEquals("payload " + i, received.take());
+		}
+		// rather than the send timeout for each payload that finds the ring full
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		stalled.countDown();
+		a.kill();
+		b.kill();
+		c.kill();
+	}
+
+	@Test(expected = MessengerException.class)
+	public void addressIsUnique() throws Exception {
+		SharedMemoryNetwork network = new SharedMemoryNetwork(directory);
+		network.start("a", (t, payload) -> {});
+		new SharedMemoryNetwork(directory).start("a", (t, payload) -> {});
+	}
+
+	@Test(timeout = 5000)
+	public void senderReachesTheNextTransportAtAnAddress() throws Exception {
+		SharedMemoryNetwork network = new SharedMemoryNetwork(directory);
+		Transport a = network.start("a", (t, payload) -> {});
+		Transport first = network.start("b", (t, payload) -> {});
+		a.send("b", "to the first");
+		first.kill();
+		a.send("nobody", "lost");
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Transport second = network.start("b", (t, payload) -> received.add(payload));
+		// the first payload finds the old ring closed, and is lost
+		a.send("b", "lost");
+		a.send("b", "to the second");
+		assertEquals("to the second", received.poll(1, TimeUnit.SECONDS));
+		assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+		a.kill();
+		second.kill();
+	}
+
+	@Test(timeout = 10000)
+	public void messengersExchangeOverSharedMemory() throws Exception {
+		TransportChecks.messengersExchange(new SharedMemoryNetwork(directory), () -> MessageDispatcher.boundedPool(1), 5000);
+	}
+}
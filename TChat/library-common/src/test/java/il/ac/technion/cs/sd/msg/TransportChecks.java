@@ -0,0 +1,38 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+
+import il.ac.technion.cs.sd.msg.Message.MessageType;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Checks shared by the tests of the transports
+ */
+class TransportChecks {
+	private TransportChecks() {
+	}
+
+	/**
+	 * Sends messages from one messenger to another over the network, and checks they all arrive in order
+	 * @param dispatchers creates the dispatcher of each messenger
+	 */
+	static void messengersExchange(TransportFactory network, Supplier<MessageDispatcher> dispatchers, int count)
+			throws Exception {
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ReliableMessenger a = new ReliableMessenger("a", msg -> {}, 8, dispatchers.get(), network);
+		ReliableMessenger b = new ReliableMessenger("b", msg -> received.add(msg.getContent()), 8,
+				dispatchers.get(), network);
+		for (int i = 0; i < count; i++){
+			a.Send("b", new Message("a", "m" + i, MessageType.NEW_MESSAGE));
+		}
+		a.flush();
+		for (int i = 0; i < count; i++){
+			assertEquals("m" + i, received.take());
+		}
+		a.kill();
+		b.kill();
+	}
+}
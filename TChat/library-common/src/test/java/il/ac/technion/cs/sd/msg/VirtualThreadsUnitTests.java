@@ -0,0 +1,40 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+public class VirtualThreadsUnitTests {
+	@Test(timeout = 5000)
+	public void platformThreadRunsTheTask() throws Exception {
+		BlockingQueue<String> names = new LinkedBlockingQueue<>();
+		Thread t = VirtualThreads.start("platform", () -> names.add(Thread.currentThread().getName()), false);
+		assertEquals("platform", names.take());
+		assertTrue(t.isDaemon());
+	}
+
+	@Test(timeout = 5000)
+	public void virtualThreadRunsTheTaskWhereSupported() throws Exception {
+		BlockingQueue<String> names = new LinkedBlockingQueue<>();
+		try {
+			VirtualThreads.start("virtual", () -> names.add(Thread.currentThread().getName()), true);
+		} catch (UnsupportedOperationException e) {
+			assertTrue(!VirtualThreads.isSupported());
+			return;
+		}
+		assertTrue(VirtualThreads.isSupported());
+		assertEquals("virtual", names.take());
+	}
+
+	@Test(timeout = 10000)
+	public void messengersExchangeOnVirtualThreadsWhereSupported() throws Exception {
+		if (!VirtualThreads.isSupported()){
+			return;
+		}
+		TransportChecks.messengersExchange(new LoopbackNetwork(), MessageDispatcher::virtualThreads, 100);
+	}
+}
@@ -0,0 +1,209 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue of the items of many senders, each sender's items taken in the order they were added.
+ * Senders with a control item waiting are in the control lane, and are served ahead of the senders
+ * in the bulk lane, so a control item overtakes the items of other senders but never the earlier
+ * items of its own sender. The senders of a lane take turns, an item at a time.
+ * So that a steady stream of control items does not starve the bulk lane, a bulk sender is
+ * served after every maxControlInARow items taken from the control lane while bulk senders were waiting.
+ * Both lanes share one capacity.
+ */
+class PriorityLanes<T> {
+	static final int DEFAULT_MAX_CONTROL_IN_A_ROW = 8;
+
+	private final int capacity;
+	private final int maxControlInARow;
+	// the items waiting, by sender. a sender is in the map, and in one of the lanes, while it has items
+	private final Map<String, Sender<T>> senders = new HashMap<>();
+	private final Set<String> control = new LinkedHashSet<>();
+	private final Set<String> bulk = new LinkedHashSet<>();
+	// every waiting item in the order it was added, to drop the oldest ones first
+	private final Set<Item<T>> controlItems = new LinkedHashSet<>();
+	private final Set<Item<T>> bulkItems = new LinkedHashSet<>();
+	// the number of items taken from the control lane since the last bulk one, while bulk senders were waiting
+	private int controlInARow = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * An item and its sender. equal only to itself, so an item added twice is held twice
+	 */
+	private static class Item<T> {
+		final String sender;
+		final T value;
+		final boolean isControl;
+
+		Item(String sender, T value, boolean isControl) {
+			this.sender = sender;
+			this.value = value;
+			this.isControl = isControl;
+		}
+	}
+
+	/**
+	 * The items waiting of a single sender
+	 */
+	private static class Sender<T> {
+		final Queue<Item<T>> items = new ArrayDeque<>();
+		int controlCount = 0;
+	}
+
+	/**
+	 * @param capacity the maximal number of items in both lanes; Integer.MAX_VALUE for unbounded
+	 * @param maxControlInARow the number of control items taken before a waiting bulk item is
+	 */
+	PriorityLanes(int capacity, int maxControlInARow) {
+		if (capacity < 1 || maxControlInARow < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.maxControlInARow = maxControlInARow;
+	}
+
+	PriorityLanes(int capacity) {
+		this(capacity, DEFAULT_MAX_CONTROL_IN_A_ROW);
+	}
+
+	/**
+	 * @return true if the item was added, false if the lanes are full
+	 */
+	boolean offer(String sender, T item, boolean isControl) {
+		lock.lock();
+		try {
+			if (size() >= capacity) {
+				return false;
+			}
+			addItem(new Item<>(sender, item, isControl));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the item even if the lanes are full, for an item that was let in while they had room
+	 */
+	void add(String sender, T item, boolean isControl) {
+		lock.lock();
+		try {
+			addItem(new Item<>(sender, item, isControl));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void addItem(Item<T> item) {
+		Sender<T> sender = senders.get(item.sender);
+		if (sender == null) {
+			sender = new Sender<>();
+			senders.put(item.sender, sender);
+			bulk.add(item.sender);
+		}
+		sender.items.add(item);
+		if (item.isControl) {
+			controlItems.add(item);
+			if (sender.controlCount++ == 0) {
+				bulk.remove(item.sender);
+				control.add(item.sender);
+			}
+		} else {
+			bulkItems.add(item);
+		}
+		notEmpty.signal();
+	}
+
+	/**
+	 * @return true if the lanes hold as many items as their capacity, or more
+	 */
+	boolean isFull() {
+		return size() >= capacity;
+	}
+
+	/**
+	 * Takes the next item, waiting while the lanes are empty.
+	 */
+	T take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (senders.isEmpty()) {
+				notEmpty.await();
+			}
+			boolean isControlTurn = !control.isEmpty() && (bulk.isEmpty() || controlInARow < maxControlInARow);
+			Iterator<String> lane = (isControlTurn ? control : bulk).iterator();
+			String sender = lane.next();
+			lane.remove();
+			controlInARow = isControlTurn && !bulk.isEmpty() ? controlInARow + 1 : 0;
+			Item<T> $ = senders.get(sender).items.peek();
+			remove($);
+			if (senders.containsKey(sender)) {
+				// its next turn is after the other senders of its lane
+				(senders.get(sender).controlCount > 0 ? control : bulk).add(sender);
+			}
+			return $.value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the item to drop when making room: the oldest bulk item, or the oldest control item
+	 * if there are no bulk items.
+	 * @return the removed item, or null if the lanes are empty
+	 */
+	T pollOldest() {
+		lock.lock();
+		try {
+			Iterator<Item<T>> oldest = (bulkItems.isEmpty() ? controlItems : bulkItems).iterator();
+			if (!oldest.hasNext()) {
+				return null;
+			}
+			Item<T> $ = oldest.next();
+			remove($);
+			return $.value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the item, moving its sender to the lane of the items it has left
+	 */
+	private void remove(Item<T> item) {
+		Sender<T> sender = senders.get(item.sender);
+		sender.items.remove(item);
+		if (item.isControl) {
+			controlItems.remove(item);
+			sender.controlCount--;
+		} else {
+			bulkItems.remove(item);
+		}
+		if (sender.items.isEmpty()) {
+			senders.remove(item.sender);
+			control.remove(item.sender);
+			bulk.remove(item.sender);
+		} else if (sender.controlCount == 0 && control.remove(item.sender)) {
+			bulk.add(item.sender);
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return controlItems.size() + bulkItems.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,11 +1,21 @@
 package il.ac.technion.cs.sd.msg;
 
 import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * server side of communications library.
@@ -14,12 +24,147 @@ import java.util.function.Consumer;
  * a blocking queue of messages sent to the server. 
  */
 public class ServerCommunicationsLibrary {
+	// the time a message to a client may take to be acknowledged, so a client that went away
+	// does not stall the server forever
+	public static final long DEFAULT_SEND_DEADLINE_IN_MS = 5000;
+	// sent to a client whose message was dropped under OverflowPolicy.REPLY_BUSY, unless set otherwise
+	public static final String DEFAULT_BUSY_PAYLOAD = "server busy";
+	// the time a request may wait for sendReply, after which a reply is no longer matched to it
+	public static final long DEFAULT_REQUEST_TIMEOUT_IN_MS = 30000;
+	// the number of requests of a client that may wait for sendReply; older ones are forgotten
+	public static final int MAX_PENDING_REQUESTS_PER_CLIENT = 64;
+	
 	private String serverAddress;
-	private BlockingQueue<Message> requestQueue;
+	private int sendWindowSize;
+	private long maxCoalescingDelayInMs = 0;
+	private int maxBatchSize = 0;
+	private long sendDeadlineInMs = DEFAULT_SEND_DEADLINE_IN_MS;
+	private Consumer<String> peerFailureListener = client -> {};
+	private int compressionThreshold = 0;
+	private int maxFragmentSize = 0;
+	private TransportFactory transports = TransportFactory.messenger();
+	// the file of the outbox of the messenger created by start; null for none
+	private Path outboxFile = null;
+	// whether the workers run on virtual threads
+	private boolean isVirtual = VirtualThreads.isRequested();
+	// each client is served by one worker, so its messages are handled in order
+	private Worker[] workers;
+	// the capacity of the queue of each worker; 0 for unbounded
+	private int ingressCapacity = 0;
 	private ReliableMessenger messenger;
 	private BiConsumer<String, String> applicationAction;
 	private volatile boolean isStopped;
-	private Thread pollingThread;
+	// set by drain, so messages that arrive meanwhile are not acknowledged
+	private volatile boolean isDraining = false;
+	// the messages queued or being handled by the workers. guards the waiting of drain
+	private final AtomicLong unfinishedCount = new AtomicLong();
+	// the request ids of the messages each client awaits a reply to, oldest first.
+	// sendReply answers the oldest, so a client can have several requests outstanding at once.
+	// requests the application answers with send, or not at all, expire, so that later replies
+	// are not matched to them. guarded by pendingRequests, together with lastExpiry
+	private final Map<String, Queue<PendingRequest>> pendingRequests = new HashMap<>();
+	private long requestTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REQUEST_TIMEOUT_IN_MS);
+	// the time requests expire by, in nanoseconds. System.nanoTime, unless a test sets it
+	LongSupplier requestClock = System::nanoTime;
+	// the time the requests of all clients were last expired at
+	private long lastExpiry = System.nanoTime();
+	
+	/**
+	 * a request of a client that awaits sendReply
+	 */
+	private static class PendingRequest {
+		final long id;
+		// the time of the request clock it arrived at
+		final long receivedAt;
+		
+		PendingRequest(long id, long receivedAt) {
+			this.id = id;
+			this.receivedAt = receivedAt;
+		}
+	}
+	
+	// what to do with a message that arrives while the request queue is full
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private String busyPayload = DEFAULT_BUSY_PAYLOAD;
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	// the watermarks are told when the request queue fills up to highWatermark, and again
+	// only once it drains down to lowWatermark
+	private int highWatermark = Integer.MAX_VALUE;
+	private int lowWatermark = 0;
+	private WatermarkListener watermarkListener = null;
+	private final AtomicBoolean isAboveHighWatermark = new AtomicBoolean(false);
+	
+	/**
+	 * What to do with a message that arrives while the request queue is full
+	 */
+	public enum OverflowPolicy {
+		// the message is not acknowledged while the queue is full, so its sender retransmits it later,
+		// backing off. the senders are slowed down to the pace of the workers, and no message waits
+		// outside the queue. the messages of a client are still handled in the order it sent them
+		BLOCK,
+		// the message that arrived is dropped
+		DROP_NEWEST,
+		// the oldest message in the queue is dropped to make room
+		DROP_OLDEST,
+		// the message that arrived is dropped, and its sender is sent the busy payload
+		REPLY_BUSY,
+	}
+	
+	/**
+	 * What drain did with the messages of the clients
+	 */
+	public static class DrainResult {
+		private final long drained;
+		private final long abandoned;
+		private final boolean isFlushed;
+		
+		DrainResult(long drained, long abandoned, boolean isFlushed) {
+			this.drained = drained;
+			this.abandoned = abandoned;
+			this.isFlushed = isFlushed;
+		}
+		
+		/**
+		 * @return the number of queued messages the application handled before the library stopped
+		 */
+		public long getDrained() {
+			return drained;
+		}
+		
+		/**
+		 * @return the number of messages the application did not finish handling: those still queued
+		 * or being handled at the deadline. messages that arrived during the drain are not counted, as
+		 * they were not acknowledged, and their senders send them again to the next run of the server
+		 */
+		public long getAbandoned() {
+			return abandoned;
+		}
+		
+		/**
+		 * @return true if every message the server sent was acknowledged or given up on before the deadline
+		 */
+		public boolean isFlushed() {
+			return isFlushed;
+		}
+	}
+	
+	/**
+	 * Observes how full the request queue is
+	 */
+	public interface WatermarkListener {
+		/**
+		 * called when the queue fills up to the high watermark
+		 * @param queueDepth the number of messages in the queue
+		 */
+		void onHighWatermark(int queueDepth);
+		
+		/**
+		 * called when the queue, after reaching the high watermark, drains down to the low watermark
+		 * @param queueDepth the number of messages in the queue
+		 */
+		void onLowWatermark(int queueDepth);
+	}
 	
 	/**
 	 *  A consumer that is passed to reliable messenger.
@@ -27,42 +172,490 @@ public class ServerCommunicationsLibrary {
 	 */
 	Consumer<Message> libraryActionOnReceive = new Consumer<Message>() {
 		@Override
-		public void accept(Message msg) {		
-			if (!requestQueue.offer(msg)){
-				//throw new RuntimeException("you succesfully created denial of service on server way to go asshole");
+		public void accept(Message msg) {
+			if (msg.getRequestId() != 0){
+				addRequest(msg);
+			}
+			// counted before it is queued, so drain does not see the library idle while it is
+			unfinishedCount.incrementAndGet();
+			if (!enqueue(msg)){
+				finished();
+				drop(msg);
+				if (overflowPolicy == OverflowPolicy.REPLY_BUSY){
+					replyBusy(msg);
+				}
+			}
+			if (highWatermark != Integer.MAX_VALUE && getQueueDepth() >= highWatermark 
+					&& isAboveHighWatermark.compareAndSet(false, true)){
+				watermarkListener.onHighWatermark(getQueueDepth());
 			}
 		}
 	};
+	
+	/**
+	 * tells the messenger whether to acknowledge a new message. none is while draining, so that it is
+	 * sent again to the next run of the server, nor, see OverflowPolicy.BLOCK, while the queue of its
+	 * sender is full. the messages
+	 * of a batch, or of a fragmented message, that was let in all enter the queue, which may so hold
+	 * a batch more than its capacity
+	 */
+	private boolean admits(Message msg) {
+		if (isDraining){
+			return false;
+		}
+		return overflowPolicy != OverflowPolicy.BLOCK || !workerFor(msg.getFrom()).queue.isFull();
+	}
+	
+	/**
+	 * @return true if the message entered the queue of the worker serving its sender
+	 */
+	private boolean enqueue(Message msg) {
+		String client = msg.getFrom();
+		PriorityLanes<Message> requestQueue = workerFor(client).queue;
+		boolean isControl = isControl(msg);
+		switch (overflowPolicy) {
+		case BLOCK:
+			// it was let in while there was room
+			requestQueue.add(client, msg, isControl);
+			return true;
+		case DROP_OLDEST:
+			while (!requestQueue.offer(client, msg, isControl)){
+				Message oldest = requestQueue.pollOldest();
+				if (oldest != null){
+					finished();
+					drop(oldest);
+				}
+			}
+			return true;
+		default:
+			return requestQueue.offer(client, msg, isControl);
+		}
+	}
+	
+	/**
+	 * a client with a reply, or a message it marked as control, waiting is served ahead of the
+	 * clients with only bulk messages waiting in the same queue. its own messages stay in order
+	 */
+	private static boolean isControl(Message msg) {
+		return msg.getPriority() == Priority.CONTROL || msg.getMessageType() == MessageType.REPLIED_MESSAGE;
+	}
+	
+	/**
+	 * forgets a message that will not reach the application
+	 */
+	private void drop(Message msg) {
+		droppedCount.incrementAndGet();
+		forget(msg);
+	}
+	
+	/**
+	 * forgets the request of a message that will not reach the application, so a reply is not matched to it
+	 */
+	private void forget(Message msg) {
+		if (msg.getRequestId() == 0){
+			return;
+		}
+		synchronized (pendingRequests) {
+			Queue<PendingRequest> requests = pendingRequests.get(msg.getFrom());
+			if (requests != null && requests.removeIf(request -> request.id == msg.getRequestId()) 
+					&& requests.isEmpty()){
+				pendingRequests.remove(msg.getFrom());
+			}
+		}
+	}
+	
+	private void addRequest(Message msg) {
+		synchronized (pendingRequests) {
+			long now = requestClock.getAsLong();
+			if (now - lastExpiry >= requestTimeoutInNanos){
+				// the requests of clients that went away are not looked at otherwise
+				pendingRequests.values().removeIf(requests -> expire(requests, now));
+				lastExpiry = now;
+			}
+			Queue<PendingRequest> requests = pendingRequests.computeIfAbsent(msg.getFrom(), client -> new ArrayDeque<>());
+			if (requests.size() >= MAX_PENDING_REQUESTS_PER_CLIENT){
+				requests.poll();
+			}
+			requests.add(new PendingRequest(msg.getRequestId(), now));
+		}
+	}
+	
+	/**
+	 * removes the expired requests, the oldest ones, of a client
+	 * @return true if the client has no requests left
+	 */
+	private boolean expire(Queue<PendingRequest> requests, long now) {
+		while (!requests.isEmpty() && now - requests.peek().receivedAt >= requestTimeoutInNanos){
+			requests.poll();
+		}
+		return requests.isEmpty();
+	}
+	
+	/**
+	 * tells the sender of a dropped message that the server is busy. the reply is not waited on,
+	 * as its ack arrives on the very thread that runs this
+	 */
+	private void replyBusy(Message msg) {
+		boolean isRequest = msg.getRequestId() != 0;
+		Message busy = new Message(serverAddress, busyPayload, isRequest ? MessageType.REPLIED_MESSAGE : MessageType.NEW_MESSAGE);
+		busy.setInReplyTo(msg.getRequestId());
+		try {
+			messenger.SendAsync(msg.getFrom(), busy);
+		} catch (RuntimeException e) {
+			// the library was stopped meanwhile
+		}
+	}
 
 	/**
-	 * a thread that polls the blocking queue of received messages and invokes the
+	 * counts a message out of the queues, handled or dropped, and wakes drain when there are none left
+	 */
+	private void finished() {
+		if (unfinishedCount.decrementAndGet() == 0){
+			synchronized (unfinishedCount){
+				unfinishedCount.notifyAll();
+			}
+		}
+	}
+	
+	private Worker workerFor(String client) {
+		return workers[Math.floorMod(client.hashCode(), workers.length)];
+	}
+	
+	/**
+	 * a thread that polls the blocking queue of the messages of its clients and invokes the
 	 * consumer supplied by the application when there is a message to take from
-	 * the queue 
+	 * the queue. clients with control messages waiting are served ahead of the others
 	 */
-	private Runnable serverPollingThread= ()->{
-		while(!isStopped){
-			try{
-				Message msg= requestQueue.take();
-				applicationAction.accept(msg.getFrom(), msg.getContent());
+	private class Worker implements Runnable {
+		final PriorityLanes<Message> queue;
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicLong handledCount = new AtomicLong();
+		private Thread thread;
+		
+		Worker(int capacity) {
+			queue = new PriorityLanes<>(capacity == 0 ? Integer.MAX_VALUE : capacity);
+		}
+		
+		void start(int index) {
+			if (isVirtual){
+				thread = VirtualThreads.start("server-worker-" + index, this, true);
+				return;
+			}
+			thread = new Thread(this, "server-worker-" + index);
+			thread.start();
+		}
+		
+		void interrupt() {
+			if (thread != null && thread != Thread.currentThread()){
+				thread.interrupt();
 			}
-			catch(Exception e){
+		}
+		
+		@Override
+		public void run() {
+			while(!isStopped){
+				try{
+					Message msg= queue.take();
+					if (getQueueDepth() <= lowWatermark && isAboveHighWatermark.compareAndSet(true, false)){
+						watermarkListener.onLowWatermark(getQueueDepth());
+					}
+					long startedAt = System.nanoTime();
+					try {
+						applicationAction.accept(msg.getFrom(), msg.getContent());
+					} finally {
+						busyNanos.addAndGet(System.nanoTime() - startedAt);
+						handledCount.incrementAndGet();
+						finished();
+					}
+				}
+				catch(Exception e){
+				}
 			}
 		}
-	};
+	}
 	
 	/**
 	 * creates a new instance of ServerCommunicationsLibrary
 	 * @param serverAddress the address of the server
 	 */
 	public ServerCommunicationsLibrary(String serverAddress) {
+		this(serverAddress, 1);
+	}
+	
+	/**
+	 * creates a new instance of ServerCommunicationsLibrary that pipelines its sends
+	 * @param serverAddress the address of the server
+	 * @param sendWindowSize the maximal number of unacknowledged messages per client.
+	 * with a window larger than 1, send returns before the message is acknowledged
+	 */
+	public ServerCommunicationsLibrary(String serverAddress, int sendWindowSize) {
 		this.serverAddress = serverAddress;
-		requestQueue= new LinkedBlockingQueue<Message>();
+		this.sendWindowSize = sendWindowSize;
 		isStopped= true;
+		createWorkers(1);
+	}
+	
+	/**
+	 * makes the messenger created by start pack the messages sent to a client within a short
+	 * delay into one batch. send then returns once the message is queued, so it never throws a
+	 * DeliveryFailedException: clients that do not acknowledge a batch are told to the peer failure
+	 * listener, and fail the futures of sendAsync. must be called before start
+	 * @param maxDelayInMs the longest time a message waits for others to join its batch; 0 disables coalescing
+	 * @param maxBatchSize the size, in characters, at which a batch is sent without waiting for the delay
+	 */
+	public void setCoalescing(long maxDelayInMs, int maxBatchSize){
+		if (maxDelayInMs < 0 || (maxDelayInMs > 0 && maxBatchSize < 1)){
+			throw new IllegalArgumentException();
+		}
+		maxCoalescingDelayInMs = maxDelayInMs;
+		this.maxBatchSize = maxBatchSize;
 	}
 	
 	/**
-	 * start the server library. initializes messenger and starts the thread that polls
-	 * the request queue
+	 * bounds the queue of received messages waiting for the application. must be called before start
+	 * @param capacity the maximal number of messages in the queue of each worker
+	 * @param policy what to do with a message that arrives while the queue is full
+	 */
+	public void setIngressCapacity(int capacity, OverflowPolicy policy){
+		if (capacity < 1 || policy == null){
+			throw new IllegalArgumentException();
+		}
+		if (!isStopped){
+			throw new RuntimeException("tried to change the request queue while the library is running");
+		}
+		ingressCapacity = capacity;
+		overflowPolicy = policy;
+		createWorkers(workers.length);
+	}
+	
+	/**
+	 * sets the number of threads that run the consumer supplied by the application. the messages
+	 * of a client are always handled by the same thread, in the order they arrived, while messages
+	 * of different clients may be handled in parallel. 1 by default. must be called before start
+	 * @param count the number of threads. with more than 1, the consumer must be thread safe
+	 */
+	public void setWorkers(int count){
+		if (count < 1){
+			throw new IllegalArgumentException();
+		}
+		if (!isStopped){
+			throw new RuntimeException("tried to change the workers while the library is running");
+		}
+		createWorkers(count);
+	}
+	
+	private void createWorkers(int count) {
+		workers = new Worker[count];
+		for (int i = 0; i < count; i++){
+			workers[i] = new Worker(ingressCapacity);
+		}
+	}
+	
+	private void startWorkers() {
+		for (int i = 0; i < workers.length; i++){
+			workers[i].start(i);
+		}
+	}
+	
+	/**
+	 * sets the payload sent to a client whose message was dropped under OverflowPolicy.REPLY_BUSY.
+	 * it is sent as a reply if the client awaits one, so it should be something the client can decode
+	 */
+	public void setBusyPayload(String payload){
+		if (payload == null){
+			throw new IllegalArgumentException();
+		}
+		busyPayload = payload;
+	}
+	
+	/**
+	 * sets the watermarks of the queue of received messages, and the listener told when they are crossed.
+	 * the listener runs on the threads of the library, so it must return quickly. must be called before start
+	 * @param high the queue depth at which the listener is told the queue is filling up
+	 * @param low the queue depth at which the listener is told the queue drained again
+	 */
+	public void setWatermarks(int high, int low, WatermarkListener listener){
+		if (low < 0 || high <= low || listener == null){
+			throw new IllegalArgumentException();
+		}
+		highWatermark = high;
+		lowWatermark = low;
+		watermarkListener = listener;
+	}
+	
+	/**
+	 * @return the number of messages waiting for the application, in the queues of all workers
+	 */
+	public int getQueueDepth(){
+		int $ = 0;
+		for (Worker worker : workers){
+			$ += worker.queue.size();
+		}
+		return $;
+	}
+	
+	/**
+	 * @return the number of threads that run the consumer supplied by the application
+	 */
+	public int getWorkerCount(){
+		return workers.length;
+	}
+	
+	/**
+	 * @param worker the index of a worker, from 0 to getWorkerCount() - 1
+	 * @return the number of messages waiting for the worker
+	 */
+	public int getQueueDepth(int worker){
+		return workers[worker].queue.size();
+	}
+	
+	/**
+	 * @param worker the index of a worker, from 0 to getWorkerCount() - 1
+	 * @return the time the worker spent in the consumer supplied by the application, in milliseconds
+	 */
+	public long getBusyTime(int worker){
+		return TimeUnit.NANOSECONDS.toMillis(workers[worker].busyNanos.get());
+	}
+	
+	/**
+	 * @param worker the index of a worker, from 0 to getWorkerCount() - 1
+	 * @return the number of messages the worker handed to the application
+	 */
+	public long getHandledCount(int worker){
+		return workers[worker].handledCount.get();
+	}
+	
+	/**
+	 * @return the number of received messages that were dropped because the queue was full
+	 */
+	public long getDroppedCount(){
+		return droppedCount.get();
+	}
+	
+	/**
+	 * @return true if the queue reached the high watermark and did not drain to the low watermark since
+	 */
+	public boolean isAboveHighWatermark(){
+		return isAboveHighWatermark.get();
+	}
+	
+	/**
+	 * makes the messenger created by start deflate payloads of at least the given length.
+	 * clients inflate them without any setting of their own. must be called before start
+	 * @param thresholdInChars the payload length from which to compress; 0 to never compress
+	 */
+	public void setCompressionThreshold(int thresholdInChars){
+		if (thresholdInChars < 0){
+			throw new IllegalArgumentException();
+		}
+		compressionThreshold = thresholdInChars;
+	}
+	
+	/**
+	 * makes the messenger created by start send messages longer than the given size in fragments,
+	 * each acknowledged and retransmitted on its own. must be called before start
+	 * @param maxFragmentSize the maximal length of a fragment in its envelope, at least 128; 0 to never fragment
+	 */
+	public void setMaxFragmentSize(int maxFragmentSize){
+		if (maxFragmentSize != 0 && maxFragmentSize < 128){
+			throw new IllegalArgumentException();
+		}
+		this.maxFragmentSize = maxFragmentSize;
+	}
+	
+	/**
+	 * sets the time a request may wait for sendReply. a request the application answers with send,
+	 * or does not answer, is forgotten after it, so a later reply to the client is not matched to it.
+	 * at most MAX_PENDING_REQUESTS_PER_CLIENT requests of a client wait at once
+	 * @param timeoutInMs the time, 30 seconds by default
+	 */
+	public void setRequestTimeout(long timeoutInMs){
+		if (timeoutInMs <= 0){
+			throw new IllegalArgumentException();
+		}
+		synchronized (pendingRequests) {
+			requestTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+		}
+	}
+	
+	/**
+	 * @return the number of requests, of all clients, waiting for sendReply
+	 */
+	public int getPendingRequestCount(){
+		int $ = 0;
+		synchronized (pendingRequests) {
+			for (Queue<PendingRequest> requests : pendingRequests.values()){
+				$ += requests.size();
+			}
+		}
+		return $;
+	}
+	
+	/**
+	 * sets the time a message to a client may take to be acknowledged, after which send throws
+	 * a DeliveryFailedException. must be called before start
+	 * @param deadlineInMs the deadline; 0 for no deadline
+	 */
+	public void setSendDeadline(long deadlineInMs){
+		if (deadlineInMs < 0){
+			throw new IllegalArgumentException();
+		}
+		sendDeadlineInMs = deadlineInMs;
+	}
+	
+	/**
+	 * sets the listener told the name of a client whenever a message to it is given up on,
+	 * including messages sent with sendAsync. it runs on the retransmission thread of the messenger,
+	 * so it must return quickly. must be called before start
+	 */
+	public void setPeerFailureListener(Consumer<String> listener){
+		if (listener == null){
+			throw new IllegalArgumentException();
+		}
+		peerFailureListener = listener;
+	}
+	
+	/**
+	 * makes the messenger created by start record the messages it sends in a durable outbox in the file,
+	 * until they are acknowledged or given up on. on start, the messages a previous run recorded there
+	 * and did not finish are sent again. the routes to clients hosted by multiplexed endpoints are kept
+	 * there too, so they are reached after a restart before they send again. must be called before start
+	 * @param file the file of the outbox, or null for none
+	 */
+	public void setOutbox(Path file){
+		if (!isStopped){
+			throw new RuntimeException("tried to change the outbox while the library is running");
+		}
+		outboxFile = file;
+	}
+	
+	/**
+	 * makes the workers started by start run on virtual threads (Java 21 or later), so a server with
+	 * many workers, each blocked on sends to its clients, does not hold a platform thread per worker.
+	 * defaults to the system property of VirtualThreads. must be called before start
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public void setVirtualThreads(boolean isVirtual){
+		if (isVirtual && !VirtualThreads.isSupported()){
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+		}
+		this.isVirtual = isVirtual;
+	}
+	
+	/**
+	 * sets the transport of the messenger created by start, such as a LoopbackNetwork for
+	 * benchmarks and tests. must be called before start
+	 */
+	public void setTransportFactory(TransportFactory transports){
+		if (transports == null){
+			throw new IllegalArgumentException();
+		}
+		this.transports = transports;
+	}
+	
+	/**
+	 * start the server library. initializes messenger and starts the worker threads that poll
+	 * the request queues
 	 * @param action a consumer supplied by the application which handles the received messages  
 	 */
 	public void start(BiConsumer<String, String> action){
@@ -70,16 +663,37 @@ public class ServerCommunicationsLibrary {
 		if(!isStopped){
 			throw new RuntimeException("tried to start communications library while already running");
 		}
-		messenger = new ReliableMessenger(serverAddress, libraryActionOnReceive);
+		// libraryActionOnReceive only queues the message, so it runs on the receiving thread
+		messenger = new ReliableMessenger(serverAddress, libraryActionOnReceive, sendWindowSize, 
+				MessageDispatcher.callerRuns(), transports);
+		messenger.setAdmission(this::admits);
+		// a message refused for lack of room arrives again after the messages its sender sent next
+		messenger.setOrderedDelivery(overflowPolicy == OverflowPolicy.BLOCK && ingressCapacity > 0);
+		if (maxCoalescingDelayInMs > 0){
+			messenger.setCoalescing(maxCoalescingDelayInMs, maxBatchSize);
+		}
+		messenger.setDefaultDeadline(sendDeadlineInMs);
+		messenger.setPeerFailureListener(peerFailureListener);
+		messenger.setCompressionThreshold(compressionThreshold);
+		messenger.setMaxFragmentSize(maxFragmentSize);
+		if (outboxFile != null){
+			try {
+				messenger.setOutbox(new DurableOutbox(outboxFile));
+			} catch (IOException e) {
+				messenger.kill();
+				messenger = null;
+				throw new RuntimeException("Failed to open the outbox " + outboxFile, e);
+			}
+		}
+		isDraining = false;
 		isStopped= false;
-		pollingThread= new Thread(serverPollingThread);
-		pollingThread.start();
+		startWorkers();
 		return;
 	}
 	
 	/**
-	 * start the server library. initializes messenger and starts the thread that polls
-	 * the request queue  
+	 * start the server library. initializes messenger and starts the worker threads that poll
+	 * the request queues  
 	 * @param messenger the serverLibrary will use this as the messenger 
 	 */
 	public void startWithMockMessenger(ReliableMessenger messenger){
@@ -87,9 +701,9 @@ public class ServerCommunicationsLibrary {
 			throw new RuntimeException("tried to start communications library while already running");
 		}
 		this.messenger = messenger;
+		isDraining = false;
 		isStopped= false;
-		pollingThread= new Thread(serverPollingThread);
-		pollingThread.start();
+		startWorkers();
 		return;
 	}
 	/**
@@ -99,6 +713,63 @@ public class ServerCommunicationsLibrary {
 		isStopped= true;
 		messenger.kill();
 		messenger= null;
+		// wakes the workers waiting for messages, so they see the library stopped
+		for (Worker worker : workers){
+			worker.interrupt();
+		}
+	}
+	
+	/**
+	 * stops the server library gracefully: messages that arrive from now on are not acknowledged, so
+	 * their senders send them again to the next run of the server, the workers finish handling the queued ones, the messages sent meanwhile are waited on to be
+	 * acknowledged, and then the library is stopped as by stop. a worker still handling a message at
+	 * the deadline is interrupted
+	 * @param timeoutInMs the longest time to drain before stopping
+	 * @return how many messages were drained, and how many were abandoned
+	 */
+	public DrainResult drain(long timeoutInMs){
+		if (timeoutInMs < 0){
+			throw new IllegalArgumentException();
+		}
+		if (isStopped){
+			throw new RuntimeException("tried to drain communications library while stopped");
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+		isDraining = true;
+		long handledBefore = getHandledCount();
+		synchronized (unfinishedCount){
+			long remaining;
+			while (unfinishedCount.get() > 0 && (remaining = deadline - System.nanoTime()) > 0){
+				try {
+					TimeUnit.NANOSECONDS.timedWait(unfinishedCount, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		// the acks of the messages sent while draining keep arriving until the messenger is killed
+		boolean isFlushed = messenger.flush(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		// including a message let in just as the drain began, which the workers may still be handling
+		long left = unfinishedCount.get();
+		long drained = getHandledCount() - handledBefore;
+		stop();
+		return new DrainResult(drained, left, isFlushed);
+	}
+	
+	/**
+	 * @return true while drain is stopping the library
+	 */
+	public boolean isDraining(){
+		return isDraining && !isStopped;
+	}
+	
+	private long getHandledCount() {
+		long $ = 0;
+		for (Worker worker : workers){
+			$ += worker.handledCount.get();
+		}
+		return $;
 	}
 	
 	/**
@@ -115,6 +786,8 @@ public class ServerCommunicationsLibrary {
 	 * the server
 	 * @param target target sends the message to this user
 	 * @param payload the payload that is sent
+	 * @throws DeliveryFailedException if the target did not acknowledge the message in time.
+	 * never thrown while coalescing, see setCoalescing
 	 */
 	public void send(String target, String payload) {
 		if (isStopped){
@@ -137,12 +810,73 @@ public class ServerCommunicationsLibrary {
 		SendAux(target, payload, MessageType.REPLIED_MESSAGE);
 	}
 	
+	/**
+	 * sends a message with message type NEW_MESSAGE without waiting for the target to receive it,
+	 * so that many messages can be on their way at once
+	 * @param target sends the message to this user
+	 * @param payload the payload that is sent
+	 * @return a future completed when the target acknowledges the message
+	 */
+	public CompletableFuture<Void> sendAsync(String target, String payload) {
+		if (isStopped){
+			throw new RuntimeException("tried to send message while library stopped");
+		}
+		return SendAsyncAux(target, payload, MessageType.NEW_MESSAGE);
+	}
+	
+	/**
+	 * sends a message with message type REPLIED_MESSAGE without waiting for the target to receive it
+	 * @param target sends the message to this user
+	 * @param payload the payload that is sent
+	 * @return a future completed when the target acknowledges the message
+	 */
+	public CompletableFuture<Void> sendReplyAsync(String target, String payload) {
+		if (isStopped){
+			throw new RuntimeException("tried to send message while library stopped");
+		}
+		return SendAsyncAux(target, payload, MessageType.REPLIED_MESSAGE);
+	}
+	
+	private CompletableFuture<Void> SendAsyncAux(String target, String payload, MessageType messageType) {
+		if (payload == null){
+			throw new IllegalArgumentException();
+		}
+		
+		Message msg = new Message(serverAddress, payload, messageType);
+		if (messageType == MessageType.REPLIED_MESSAGE){
+			msg.setInReplyTo(nextRequestOf(target));
+		}
+		return messenger.SendAsync(target, msg);
+	}
+	
+	/**
+	 * @return the oldest request of the client that was not replied to yet and did not expire,
+	 * or 0 if there is none
+	 */
+	private long nextRequestOf(String client) {
+		synchronized (pendingRequests) {
+			Queue<PendingRequest> requests = pendingRequests.get(client);
+			if (requests == null){
+				return 0;
+			}
+			expire(requests, requestClock.getAsLong());
+			PendingRequest $ = requests.poll();
+			if (requests.isEmpty()){
+				pendingRequests.remove(client);
+			}
+			return $ == null ? 0 : $.id;
+		}
+	}
+	
 	private void SendAux(String target, String payload, MessageType messageType) {
 		if (payload == null){
 			throw new IllegalArgumentException();
 		}
 		
 		Message msg = new Message(serverAddress, payload, messageType);
+		if (messageType == MessageType.REPLIED_MESSAGE){
+			msg.setInReplyTo(nextRequestOf(target));
+		}
 		messenger.Send(target, msg);
 	}
 }
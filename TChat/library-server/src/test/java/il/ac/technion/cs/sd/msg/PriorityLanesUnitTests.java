@@ -0,0 +1,55 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class PriorityLanesUnitTests {
+	
+	@Test
+	public void controlItemsAreTakenAheadOfBulkItemsOfOtherSenders() throws Exception {
+		PriorityLanes<String> lanes = new PriorityLanes<>(10);
+		lanes.offer("a", "bulk1", false);
+		lanes.offer("b", "bulk2", false);
+		lanes.offer("c", "control", true);
+		assertEquals("control", lanes.take());
+		assertEquals("bulk1", lanes.take());
+		assertEquals("bulk2", lanes.take());
+	}
+	
+	@Test
+	public void controlItemsDoNotOvertakeTheirOwnSender() throws Exception {
+		PriorityLanes<String> lanes = new PriorityLanes<>(10);
+		lanes.offer("a", "bulk1", false);
+		lanes.offer("b", "bulk2", false);
+		lanes.offer("a", "control", true);
+		// a is served first, in the order it added its items
+		assertEquals("bulk1", lanes.take());
+		assertEquals("control", lanes.take());
+		assertEquals("bulk2", lanes.take());
+	}
+	
+	@Test
+	public void bulkLaneIsNotStarved() throws Exception {
+		PriorityLanes<String> lanes = new PriorityLanes<>(10, 2);
+		lanes.offer("bulk sender", "bulk", false);
+		for (int i = 0; i < 4; i++){
+			lanes.offer("control sender", "control" + i, true);
+		}
+		assertEquals("control0", lanes.take());
+		assertEquals("control1", lanes.take());
+		assertEquals("bulk", lanes.take());
+		assertEquals("control2", lanes.take());
+	}
+	
+	@Test
+	public void lanesShareTheCapacity() throws Exception {
+		PriorityLanes<String> lanes = new PriorityLanes<>(2);
+		lanes.offer("a", "bulk", false);
+		lanes.offer("b", "control", true);
+		assertFalse(lanes.offer("c", "more", true));
+		assertEquals("bulk", lanes.pollOldest());
+		assertEquals(1, lanes.size());
+	}
+}
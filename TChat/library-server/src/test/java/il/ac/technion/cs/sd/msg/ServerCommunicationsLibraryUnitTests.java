@@ -2,9 +2,17 @@ package il.ac.technion.cs.sd.msg;
 
 import static org.junit.Assert.*;
 import il.ac.technion.cs.sd.msg.Message.MessageType;
+import il.ac.technion.cs.sd.msg.Message.Priority;
+import il.ac.technion.cs.sd.msg.ServerCommunicationsLibrary.DrainResult;
+import il.ac.technion.cs.sd.msg.ServerCommunicationsLibrary.OverflowPolicy;
+import il.ac.technion.cs.sd.msg.ServerCommunicationsLibrary.WatermarkListener;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -62,5 +70,251 @@ public class ServerCommunicationsLibraryUnitTests {
 		Mockito.verify(mockMessenger,Mockito.only()).Send("client", new Message("server", "hello", MessageType.REPLIED_MESSAGE));
 	}
 	
-
-}
\ No newline at end of file
+	@Test
+	public void serverLibrarySendsCorrectNewMessageWhenSendAsyncInvoked() {
+		serverLibrary.sendAsync("client", "hello");
+		Mockito.verify(mockMessenger,Mockito.only()).SendAsync("client", new Message("server", "hello", MessageType.NEW_MESSAGE));
+	}
+	
+	@Test(expected= RuntimeException.class)
+	public void serverLibraryThrowsRuntimeExceptionWhenTryingToSendAsyncWhileItIsStopped() {
+		serverLibrary.stop();
+		serverLibrary.sendAsync("client", "hello");
+	}
+	
+	@Test
+	public void dropNewestDropsMessagesArrivingAtAFullQueue() {
+		ServerCommunicationsLibrary bounded = new ServerCommunicationsLibrary("bounded");
+		bounded.setIngressCapacity(2, OverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 3; i++){
+			bounded.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		assertEquals(2, bounded.getQueueDepth());
+		assertEquals(1, bounded.getDroppedCount());
+	}
+	
+	@Test
+	public void dropOldestMakesRoomForMessagesArrivingAtAFullQueue() {
+		ServerCommunicationsLibrary bounded = new ServerCommunicationsLibrary("bounded");
+		bounded.setIngressCapacity(2, OverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 5; i++){
+			bounded.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		assertEquals(2, bounded.getQueueDepth());
+		assertEquals(3, bounded.getDroppedCount());
+	}
+	
+	@Test
+	public void highWatermarkIsReportedOnce() {
+		ServerCommunicationsLibrary bounded = new ServerCommunicationsLibrary("bounded");
+		BlockingQueue<Integer> highs = new LinkedBlockingQueue<>();
+		bounded.setWatermarks(2, 0, new WatermarkListener() {
+			@Override
+			public void onHighWatermark(int queueDepth) {
+				highs.add(queueDepth);
+			}
+			
+			@Override
+			public void onLowWatermark(int queueDepth) {
+				fail();
+			}
+		});
+		for (int i = 0; i < 4; i++){
+			bounded.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		assertEquals(1, highs.size());
+		assertEquals(2, (int)highs.peek());
+		assertTrue(bounded.isAboveHighWatermark());
+	}
+	
+	@Test
+	public void messagesOfAClientAreQueuedForASingleWorker() {
+		ServerCommunicationsLibrary sharded = new ServerCommunicationsLibrary("sharded");
+		sharded.setWorkers(4);
+		for (int i = 0; i < 3; i++){
+			sharded.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		int busyWorkers = 0;
+		for (int i = 0; i < sharded.getWorkerCount(); i++){
+			if (sharded.getQueueDepth(i) > 0){
+				assertEquals(3, sharded.getQueueDepth(i));
+				busyWorkers++;
+			}
+		}
+		assertEquals(1, busyWorkers);
+		assertEquals(3, sharded.getQueueDepth());
+	}
+	
+	@Test(timeout = 5000)
+	public void drainHandlesTheQueuedMessagesBeforeStopping() {
+		ServerCommunicationsLibrary draining = new ServerCommunicationsLibrary("draining");
+		draining.setTransportFactory(new LoopbackNetwork());
+		draining.start((sender, x) -> {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				fail();
+			}
+			incomingMessages.add(x);
+		});
+		for (int i = 0; i < 5; i++){
+			draining.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		DrainResult result = draining.drain(4000);
+		assertEquals(5, result.getDrained());
+		assertEquals(0, result.getAbandoned());
+		assertTrue(result.isFlushed());
+		assertEquals(5, incomingMessages.size());
+		assertTrue(draining.isStopped());
+	}
+	
+	@Test(timeout = 5000)
+	public void drainAbandonsWhatIsLeftAtTheDeadline() {
+		ServerCommunicationsLibrary draining = new ServerCommunicationsLibrary("stuck");
+		draining.setTransportFactory(new LoopbackNetwork());
+		CountDownLatch never = new CountDownLatch(1);
+		draining.start((sender, x) -> {
+			try {
+				never.await();
+			} catch (InterruptedException e) {
+				// interrupted by stop
+			}
+		});
+		for (int i = 0; i < 3; i++){
+			draining.libraryActionOnReceive.accept(new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		DrainResult result = draining.drain(50);
+		assertEquals(0, result.getDrained());
+		assertEquals(3, result.getAbandoned());
+		assertTrue(draining.isStopped());
+	}
+	
+	@Test(timeout = 5000)
+	public void controlMessagesKeepTheOrderOfTheirClient() throws Exception {
+		ServerCommunicationsLibrary ordered = new ServerCommunicationsLibrary("ordered");
+		ordered.setTransportFactory(new LoopbackNetwork());
+		for (int i = 0; i < 3; i++){
+			ordered.libraryActionOnReceive.accept(new Message("client", "chat #" + i, MessageType.NEW_MESSAGE));
+		}
+		Message disconnect = new Message("client", "disconnect", MessageType.NEW_MESSAGE);
+		disconnect.setPriority(Priority.CONTROL);
+		ordered.libraryActionOnReceive.accept(disconnect);
+		ordered.start((sender, x) -> incomingMessages.add(x));
+		for (int i = 0; i < 3; i++){
+			assertEquals("chat #" + i, incomingMessages.take());
+		}
+		assertEquals("disconnect", incomingMessages.take());
+		ordered.stop();
+	}
+	
+	@Test(timeout = 10000)
+	public void messagesArrivingDuringDrainAreLeftForTheNextRun() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		ServerCommunicationsLibrary draining = new ServerCommunicationsLibrary("restarting");
+		draining.setTransportFactory(network);
+		CountDownLatch handling = new CountDownLatch(1);
+		CountDownLatch released = new CountDownLatch(1);
+		draining.start((sender, x) -> {
+			handling.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				fail();
+			}
+		});
+		ReliableMessenger client = new ReliableMessenger("client", x -> {}, 2, MessageDispatcher.boundedPool(1), network);
+		client.SendAsync("restarting", new Message("client", "#0", MessageType.NEW_MESSAGE));
+		handling.await();
+		CompletableFuture<DrainResult> result = CompletableFuture.supplyAsync(() -> draining.drain(5000));
+		while (!draining.isDraining()){
+			Thread.sleep(1);
+		}
+		CompletableFuture<Void> late = client.SendAsync("restarting", new Message("client", "#1", MessageType.NEW_MESSAGE));
+		// it is not acknowledged, so the client sends it again
+		while (client.getRetransmissions() == 0){
+			Thread.sleep(1);
+		}
+		released.countDown();
+		assertEquals(1, result.get().getDrained());
+		assertEquals(0, result.get().getAbandoned());
+		assertFalse(late.isDone());
+		
+		ServerCommunicationsLibrary restarted = new ServerCommunicationsLibrary("restarting");
+		restarted.setTransportFactory(network);
+		restarted.start((sender, x) -> incomingMessages.add(x));
+		assertEquals("#1", incomingMessages.take());
+		late.join();
+		client.kill();
+		restarted.stop();
+	}
+	
+	private static Message request(String client, long requestId) {
+		Message $ = new Message(client, "request", MessageType.NEW_MESSAGE);
+		$.setRequestId(requestId);
+		return $;
+	}
+	
+	@Test
+	public void pendingRequestsOfAClientAreBounded() {
+		ServerCommunicationsLibrary bounded = new ServerCommunicationsLibrary("bounded");
+		for (int i = 1; i <= 2 * ServerCommunicationsLibrary.MAX_PENDING_REQUESTS_PER_CLIENT; i++){
+			bounded.libraryActionOnReceive.accept(request("client", i));
+		}
+		assertEquals(ServerCommunicationsLibrary.MAX_PENDING_REQUESTS_PER_CLIENT, bounded.getPendingRequestCount());
+	}
+	
+	@Test
+	public void unansweredRequestsExpire() {
+		ServerCommunicationsLibrary expiring = new ServerCommunicationsLibrary("expiring");
+		AtomicLong now = new AtomicLong(System.nanoTime());
+		expiring.requestClock = now::get;
+		expiring.setRequestTimeout(20);
+		expiring.libraryActionOnReceive.accept(request("gone", 1));
+		expiring.libraryActionOnReceive.accept(request("gone", 2));
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(19));
+		expiring.libraryActionOnReceive.accept(request("client", 1));
+		assertEquals(3, expiring.getPendingRequestCount());
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+		expiring.libraryActionOnReceive.accept(request("client", 2));
+		// the requests of the client that went away expired, and those of the other client did not
+		assertEquals(2, expiring.getPendingRequestCount());
+	}
+	
+	@Test(timeout = 10000)
+	public void fullQueueHoldsBackTheAcksOfNewMessages() throws Exception {
+		LoopbackNetwork network = new LoopbackNetwork();
+		ServerCommunicationsLibrary blocking = new ServerCommunicationsLibrary("blocking");
+		blocking.setTransportFactory(network);
+		blocking.setIngressCapacity(1, OverflowPolicy.BLOCK);
+		// a send that is not acknowledged in time fails the worker, and the echo is lost
+		blocking.setSendDeadline(2000);
+		CountDownLatch released = new CountDownLatch(1);
+		blocking.start((sender, x) -> {
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				fail();
+			}
+			blocking.send(sender, "echo " + x);
+		});
+		BlockingQueue<String> echoes = new LinkedBlockingQueue<>();
+		int count = 8;
+		// a window of all the messages, so they are all sent before the worker is released
+		ReliableMessenger client = new ReliableMessenger("client", msg -> echoes.add(msg.getContent()), count, 
+				MessageDispatcher.boundedPool(1), network);
+		for (int i = 0; i < count; i++){
+			client.SendAsync("blocking", new Message("client", "#" + i, MessageType.NEW_MESSAGE));
+		}
+		// the messages that found the queue full were not acknowledged, so the client retransmits them
+		while (client.getRetransmissions() == 0){
+			Thread.sleep(1);
+		}
+		assertTrue(blocking.getQueueDepth() <= 1);
+		released.countDown();
+		for (int i = 0; i < count; i++){
+			assertEquals("echo #" + i, echoes.take());
+		}
+		client.kill();
+		blocking.stop();
+	}
+}